@@ -0,0 +1,685 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.*;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.ServletException;
+import javax.servlet.http.*;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.thread.QueuedThreadPool;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.ParentReference;
+
+/**
+ * An in-memory stand-in for the parts of the Drive v2 API that Stream2GDrive uses: resumable
+ * and multipart inserts, resumable updates, folder inserts, ranged media downloads, paged {@code files.list} and
+ * {@code files.trash}, on its own or in batch requests. List results honour the fields
+ * selected for their items.
+ *
+ * Every request can be slowed down by a fixed latency and a per-connection bandwidth limit, and
+ * a configurable fraction of requests fails with 503, so retry paths can be exercised too.
+ * Point a client at it with {@code Drive.Builder.setRootUrl(server.getRootUrl())}.
+ */
+class FakeDriveServer {
+    /** Part of the name of every thread the server runs requests on. */
+    public static final String THREAD_NAME = "FakeDriveServer";
+
+    private static final int SC_RESUME_INCOMPLETE = 308;
+
+    private static final Pattern PARENT_CLAUSE = Pattern.compile("'([^']*)' in parents");
+    private static final Pattern FIELD_CLAUSE  = Pattern.compile("(title|mimeType)\\s*(!?=)\\s*'([^']*)'");
+    private static final Pattern ITEM_FIELDS   = Pattern.compile("items\\(([^)]*)\\)");
+    private static final Pattern BOUNDARY      = Pattern.compile("boundary=\"?([^\";]+)");
+    private static final Pattern BATCH_CALL    = Pattern.compile("(?m)^(GET|POST|PUT|PATCH|DELETE) (?:https?://[^/]+)?(/drive/v2/files/([^/?]+)/trash)?\\S*");
+
+    private static final String BATCH_BOUNDARY = "batch_fake_boundary";
+
+    private final Map<String, StoredFile> files    = new LinkedHashMap<String, StoredFile>();
+    private final Map<String, Session>    sessions = new HashMap<String, Session>();
+    private final AtomicLong              ids      = new AtomicLong();
+    private final JsonFactory             json     = JacksonFactory.getDefaultInstance();
+    private final Random                  random   = new Random();
+    private final Server                  server   = new Server();
+
+    private volatile long   latency;
+    private volatile long   bandwidth;
+    private volatile double errorRate;
+    private volatile int    maxPageSize = 1000;
+
+    private int port;
+
+    private static class StoredFile {
+        final com.google.api.services.drive.model.File meta;
+        final byte[]                                   data;
+
+        StoredFile(com.google.api.services.drive.model.File meta, byte[] data) {
+            this.meta = meta;
+            this.data = data;
+        }
+    }
+
+    private static class Session {
+        final com.google.api.services.drive.model.File meta;
+        final String                                   id;
+        final ByteArrayOutputStream                    data = new ByteArrayOutputStream();
+
+        Session(com.google.api.services.drive.model.File meta, String id) {
+            this.meta = meta;
+            this.id   = id;
+        }
+    }
+
+    public FakeDriveServer()
+        throws Exception {
+        SelectChannelConnector connector = new SelectChannelConnector();
+
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+
+        QueuedThreadPool threads = new QueuedThreadPool();
+
+        threads.setName(THREAD_NAME);
+
+        server.setThreadPool(threads);
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            @Override public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch)
+                throws IOException, ServletException {
+                ((Request) request).setHandled(true);
+                FakeDriveServer.this.handle(request, response);
+            }
+        });
+
+        server.start();
+        port = connector.getLocalPort();
+    }
+
+    public void stop()
+        throws Exception {
+        server.stop();
+    }
+
+    public String getRootUrl() {
+        return String.format("http://127.0.0.1:%d/", port);
+    }
+
+    /** Delays every response by this many ms. */
+    public FakeDriveServer setLatency(long millis) {
+        this.latency = millis;
+        return this;
+    }
+
+    /** Limits every request and response body to this many bytes per second; 0 for no limit. */
+    public FakeDriveServer setBandwidth(long bytesPerSecond) {
+        this.bandwidth = bytesPerSecond;
+        return this;
+    }
+
+    /** Answers this fraction of requests with 503 Service Unavailable. */
+    public FakeDriveServer setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /** Never returns more than this many items per page, whatever the client asks for. */
+    public FakeDriveServer setMaxPageSize(int maxPageSize) {
+        this.maxPageSize = maxPageSize;
+        return this;
+    }
+
+    /** Stores a file directly, without going through an upload. */
+    public synchronized com.google.api.services.drive.model.File addFile(String title, String parent, byte[] data)
+        throws IOException {
+        com.google.api.services.drive.model.File meta = new com.google.api.services.drive.model.File()
+            .setTitle(title)
+            .setMimeType("application/octet-stream")
+            .setParents(Arrays.asList(new ParentReference().setId(parent)));
+
+        return store(meta, data);
+    }
+
+    public synchronized int getFileCount() {
+        return files.size();
+    }
+
+    /** Forgets all files, which keeps long benchmark runs from filling the heap. */
+    public synchronized void clear() {
+        files.clear();
+        sessions.clear();
+    }
+
+    private void handle(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+        String method = request.getMethod();
+        String path   = request.getRequestURI();
+
+        pause(latency);
+
+        if (errorRate > 0 && random.nextDouble() < errorRate) {
+            drain(request.getInputStream());
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Injected error");
+            return;
+        }
+
+        if (method.equals("POST") && path.equals("/upload/drive/v2/files") &&
+            "resumable".equals(request.getParameter("uploadType"))) {
+            initiate(request, response, null);
+        }
+        else if (method.equals("POST") && path.equals("/upload/drive/v2/files") &&
+                 "multipart".equals(request.getParameter("uploadType"))) {
+            multipart(request, response);
+        }
+        else if (method.equals("PUT") && path.startsWith("/upload/drive/v2/files/") &&
+                 "resumable".equals(request.getParameter("uploadType"))) {
+            initiate(request, response, path.substring("/upload/drive/v2/files/".length()));
+        }
+        else if (method.equals("POST") && path.equals("/drive/v2/files")) {
+            insert(request, response);
+        }
+        else if (method.equals("PUT") && path.equals("/upload/drive/v2/files") && request.getParameter("upload_id") != null) {
+            upload(request, response);
+        }
+        else if (method.equals("GET") && path.equals("/drive/v2/files")) {
+            list(request, response);
+        }
+        else if (method.equals("GET") && path.startsWith("/drive/v2/files/") && "media".equals(request.getParameter("alt"))) {
+            media(request, response, path.substring("/drive/v2/files/".length()));
+        }
+        else if (method.equals("POST") && path.startsWith("/drive/v2/files/") && path.endsWith("/trash")) {
+            com.google.api.services.drive.model.File meta = trash(path.substring("/drive/v2/files/".length(),
+                                                                                 path.length() - "/trash".length()));
+
+            if (meta == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "File not found");
+            }
+            else {
+                write(response, HttpServletResponse.SC_OK, meta);
+            }
+        }
+        else if (method.equals("POST") && path.equals("/batch/drive/v2")) {
+            batch(request, response);
+        }
+        else {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, String.format("%s %s is not supported", method, path));
+        }
+    }
+
+    /** Starts an upload session; {@code fileId} is the file to update, or null for a new one. */
+    private void initiate(HttpServletRequest request, HttpServletResponse response, String fileId)
+        throws IOException {
+        com.google.api.services.drive.model.File meta = json.fromInputStream(body(request),
+                                                                              com.google.api.services.drive.model.File.class);
+        String id = Long.toString(ids.incrementAndGet());
+
+        synchronized (this) {
+            if (fileId != null && !files.containsKey(fileId)) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "File not found");
+                return;
+            }
+
+            sessions.put(id, new Session(meta, fileId));
+        }
+
+        response.setHeader("Location", getRootUrl() + "upload/drive/v2/files?uploadType=resumable&upload_id=" + id);
+        response.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    private void upload(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+        Session session;
+
+        synchronized (this) {
+            session = sessions.get(request.getParameter("upload_id"));
+        }
+
+        if (session == null) {
+            drain(request.getInputStream());
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such upload session");
+            return;
+        }
+
+        // Content-Range is "bytes <first>-<last>/<total or *>" or "bytes */<total or *>"
+        String range = request.getHeader("Content-Range");
+        String spec  = range != null ? range.substring(range.indexOf(' ') + 1) : "*/*";
+        String span  = spec.substring(0, spec.indexOf('/'));
+        String total = spec.substring(spec.indexOf('/') + 1);
+        byte[] body  = read(body(request));
+
+        synchronized (session) {
+            if (!span.equals("*")) {
+                long first = Long.parseLong(span.substring(0, span.indexOf('-')));
+
+                if (first != session.data.size()) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                                       String.format("Expected offset %d, got %d", session.data.size(), first));
+                    return;
+                }
+
+                session.data.write(body);
+            }
+
+            if (!total.equals("*") && Long.parseLong(total) == session.data.size()) {
+                com.google.api.services.drive.model.File meta;
+
+                synchronized (this) {
+                    sessions.remove(request.getParameter("upload_id"));
+                    meta = session.id != null
+                        ? replace(session.id, session.meta, session.data.toByteArray())
+                        : store(session.meta, session.data.toByteArray());
+                }
+
+                write(response, HttpServletResponse.SC_OK, meta);
+            }
+            else {
+                if (session.data.size() > 0) {
+                    response.setHeader("Range", "bytes=0-" + (session.data.size() - 1));
+                }
+
+                response.setStatus(SC_RESUME_INCOMPLETE);
+            }
+        }
+    }
+
+    private void list(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+        String q     = request.getParameter("q");
+        int    max   = Math.min(maxPageSize, request.getParameter("maxResults") != null
+                                             ? Integer.parseInt(request.getParameter("maxResults")) : 100);
+        int    start = request.getParameter("pageToken") != null ? Integer.parseInt(request.getParameter("pageToken")) : 0;
+
+        List<com.google.api.services.drive.model.File> items = new ArrayList<com.google.api.services.drive.model.File>();
+        int matched = 0;
+
+        Matcher  selected   = ITEM_FIELDS.matcher(String.valueOf(request.getParameter("fields")));
+        String[] itemFields = selected.find() ? selected.group(1).split(",") : null;
+
+        synchronized (this) {
+            for (StoredFile file : files.values()) {
+                if (matches(file.meta, q) && matched++ >= start && items.size() < max) {
+                    items.add(project(file.meta, itemFields));
+                }
+            }
+        }
+
+        FileList list = new FileList().setItems(items);
+
+        if (start + items.size() < matched) {
+            list.setNextPageToken(Integer.toString(start + items.size()));
+        }
+
+        write(response, HttpServletResponse.SC_OK, list);
+    }
+
+    private void media(HttpServletRequest request, HttpServletResponse response, String id)
+        throws IOException {
+        StoredFile file;
+
+        synchronized (this) {
+            file = files.get(id);
+        }
+
+        if (file == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "File not found");
+            return;
+        }
+
+        String range = request.getHeader("Range");
+        long   first = 0;
+        long   last  = file.data.length - 1;
+
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring(6).split("-", -1);
+
+            first = Long.parseLong(bounds[0]);
+            last  = bounds[1].length() > 0 ? Math.min(last, Long.parseLong(bounds[1])) : last;
+
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", String.format("bytes %d-%d/%d", first, last, file.data.length));
+        }
+        else {
+            response.setStatus(HttpServletResponse.SC_OK);
+        }
+
+        response.setContentType("application/octet-stream");
+        response.setContentLength((int) (last - first + 1));
+        write(response.getOutputStream(), file.data, (int) first, (int) (last - first + 1));
+    }
+
+    /** Trashes a file and returns its metadata, or null if there is no such file. */
+    private synchronized com.google.api.services.drive.model.File trash(String id) {
+        StoredFile file = files.get(id);
+
+        if (file == null) {
+            return null;
+        }
+
+        file.meta.setLabels(new com.google.api.services.drive.model.File.Labels().setTrashed(true));
+        return file.meta;
+    }
+
+    /**
+     * Runs the calls of a multipart/mixed batch request. Only trash calls are supported, and each
+     * one may fail on its own with an injected error.
+     */
+    private void batch(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+        Matcher       boundary = BOUNDARY.matcher(String.valueOf(request.getContentType()));
+        String        body     = new String(read(body(request)), "UTF-8");
+        StringBuilder result   = new StringBuilder();
+
+        if (!boundary.find()) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing multipart boundary");
+            return;
+        }
+
+        for (String part : body.split(Pattern.quote("--" + boundary.group(1)))) {
+            Matcher call = BATCH_CALL.matcher(part);
+
+            if (!call.find()) {
+                continue;
+            }
+
+            com.google.api.services.drive.model.File meta = null;
+            int                                      status;
+
+            if (errorRate > 0 && random.nextDouble() < errorRate) {
+                status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+            }
+            else if (!call.group(1).equals("POST") || call.group(2) == null) {
+                status = HttpServletResponse.SC_NOT_FOUND;
+            }
+            else {
+                meta   = trash(call.group(3));
+                status = meta != null ? HttpServletResponse.SC_OK : HttpServletResponse.SC_NOT_FOUND;
+            }
+
+            String content = meta != null
+                ? json.toString(meta)
+                : String.format("{\"error\":{\"code\":%d,\"message\":\"%s\"}}",
+                                status, status == HttpServletResponse.SC_NOT_FOUND ? "File not found" : "Injected error");
+
+            result.append("--").append(BATCH_BOUNDARY).append("\r\n")
+                .append("Content-Type: application/http\r\n\r\n")
+                .append(String.format("HTTP/1.1 %d %s\r\n", status, meta != null ? "OK" : "Error"))
+                .append("Content-Type: application/json; charset=UTF-8\r\n\r\n")
+                .append(content).append("\r\n");
+        }
+
+        byte[] data = result.append("--").append(BATCH_BOUNDARY).append("--\r\n").toString().getBytes("UTF-8");
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("multipart/mixed; boundary=" + BATCH_BOUNDARY);
+        response.setContentLength(data.length);
+        write(response.getOutputStream(), data, 0, data.length);
+    }
+
+    /** Inserts a small file whose metadata and content come in one multipart/related request. */
+    private void multipart(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+        Matcher boundary = BOUNDARY.matcher(String.valueOf(request.getContentType()));
+        byte[]  body     = read(body(request));
+
+        if (!boundary.find()) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing multipart boundary");
+            return;
+        }
+
+        // Each part starts after its delimiter and headers, and ends at CRLF before the next delimiter
+        byte[] delimiter = ("--" + boundary.group(1)).getBytes("ISO-8859-1");
+        byte[] separator = "\r\n\r\n".getBytes("ISO-8859-1");
+        int    first     = indexOf(body, separator, indexOf(body, delimiter, 0)) + separator.length;
+        int    second    = indexOf(body, delimiter, first);
+        int    content   = indexOf(body, separator, second) + separator.length;
+        int    end       = indexOf(body, delimiter, content);
+
+        if (first < separator.length || second < 0 || content < separator.length || end < 0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed multipart body");
+            return;
+        }
+
+        com.google.api.services.drive.model.File meta =
+            json.fromString(new String(body, first, second - first, "UTF-8"), com.google.api.services.drive.model.File.class);
+
+        synchronized (this) {
+            meta = store(meta, Arrays.copyOfRange(body, content, end - 2));
+        }
+
+        write(response, HttpServletResponse.SC_OK, meta);
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        if (from < 0) {
+            return -1;
+        }
+
+        outer:
+        for (int i = from; i <= data.length - pattern.length; ++i) {
+            for (int j = 0; j < pattern.length; ++j) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+
+            return i;
+        }
+
+        return -1;
+    }
+
+    /** Inserts metadata only, which is how folders are created. */
+    private void insert(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+        com.google.api.services.drive.model.File meta = json.fromInputStream(body(request),
+                                                                              com.google.api.services.drive.model.File.class);
+
+        synchronized (this) {
+            meta = store(meta, new byte[0]);
+        }
+
+        write(response, HttpServletResponse.SC_OK, meta);
+    }
+
+    /** Stores new content for an existing file, keeping its ID. */
+    private com.google.api.services.drive.model.File replace(String id, com.google.api.services.drive.model.File update, byte[] data)
+        throws IOException {
+        com.google.api.services.drive.model.File meta = files.get(id).meta;
+
+        if (update.getTitle() != null) {
+            meta.setTitle(update.getTitle());
+        }
+
+        meta.setFileSize((long) data.length)
+            .setMd5Checksum(md5(data))
+            .setModifiedDate(new DateTime(System.currentTimeMillis()));
+
+        files.put(id, new StoredFile(meta, data));
+        return meta;
+    }
+
+    private com.google.api.services.drive.model.File store(com.google.api.services.drive.model.File meta, byte[] data)
+        throws IOException {
+        String id = Long.toString(ids.incrementAndGet());
+
+        if (meta.getParents() == null || meta.getParents().isEmpty()) {
+            meta.setParents(Arrays.asList(new ParentReference().setId("root")));
+        }
+
+        meta.setId(id)
+            .setFileSize((long) data.length)
+            .setMd5Checksum(md5(data))
+            .setModifiedDate(new DateTime(System.currentTimeMillis()))
+            .setLastModifyingUserName("fake")
+            .setLabels(new com.google.api.services.drive.model.File.Labels().setTrashed(false))
+            .setDownloadUrl(getRootUrl() + "drive/v2/files/" + id + "?alt=media");
+
+        files.put(id, new StoredFile(meta, data));
+        return meta;
+    }
+
+    /** Returns a copy of {@code meta} with only {@code fields}, or {@code meta} itself if they are null. */
+    private static com.google.api.services.drive.model.File project(com.google.api.services.drive.model.File meta, String[] fields) {
+        if (fields == null) {
+            return meta;
+        }
+
+        com.google.api.services.drive.model.File copy = new com.google.api.services.drive.model.File();
+
+        for (String field : fields) {
+            if (meta.get(field.trim()) != null) {
+                copy.set(field.trim(), meta.get(field.trim()));
+            }
+        }
+
+        return copy;
+    }
+
+    /** Understands the clauses Stream2GDrive sends, joined by 'and'. */
+    private static boolean matches(com.google.api.services.drive.model.File meta, String q) {
+        if (q == null) {
+            return true;
+        }
+
+        for (String clause : q.split(" and ")) {
+            Matcher parent = PARENT_CLAUSE.matcher(clause.trim());
+            Matcher field  = FIELD_CLAUSE.matcher(clause.trim());
+
+            if (parent.matches()) {
+                boolean found = false;
+
+                for (ParentReference reference : meta.getParents()) {
+                    found |= reference.getId().equals(parent.group(1));
+                }
+
+                if (!found) {
+                    return false;
+                }
+            }
+            else if (field.matches()) {
+                String  value = field.group(1).equals("title") ? meta.getTitle() : meta.getMimeType();
+                boolean equal = field.group(3).equals(value);
+
+                if (equal != field.group(2).equals("=")) {
+                    return false;
+                }
+            }
+            else if (clause.trim().equals("trashed=false") && meta.getLabels().getTrashed()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void write(HttpServletResponse response, int status, Object data)
+        throws IOException {
+        byte[] body = json.toByteArray(data);
+
+        response.setStatus(status);
+        response.setContentType("application/json; charset=UTF-8");
+        response.setContentLength(body.length);
+        write(response.getOutputStream(), body, 0, body.length);
+    }
+
+    private void write(OutputStream os, byte[] data, int offset, int length)
+        throws IOException {
+        long started = System.currentTimeMillis();
+
+        for (int done = 0; done < length; ) {
+            int count = Math.min(64 * 1024, length - done);
+
+            os.write(data, offset + done, count);
+            done += count;
+            throttle(started, done);
+        }
+    }
+
+    private static InputStream body(HttpServletRequest request)
+        throws IOException {
+        return "gzip".equals(request.getHeader("Content-Encoding"))
+            ? new GZIPInputStream(request.getInputStream())
+            : request.getInputStream();
+    }
+
+    private byte[] read(InputStream is)
+        throws IOException {
+        ByteArrayOutputStream bos     = new ByteArrayOutputStream();
+        byte[]                buffer  = new byte[64 * 1024];
+        long                  started = System.currentTimeMillis();
+        int                   n;
+
+        while ((n = is.read(buffer)) != -1) {
+            bos.write(buffer, 0, n);
+            throttle(started, bos.size());
+        }
+
+        return bos.toByteArray();
+    }
+
+    private void drain(InputStream is)
+        throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+
+        while (is.read(buffer) != -1) {
+        }
+    }
+
+    /** Sleeps until {@code bytes} bytes would have taken their time at the configured bandwidth. */
+    private void throttle(long started, long bytes) {
+        long limit = bandwidth;
+
+        if (limit > 0) {
+            pause(bytes * 1000 / limit - (System.currentTimeMillis() - started));
+        }
+    }
+
+    private static void pause(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static String md5(byte[] data)
+        throws IOException {
+        try {
+            StringBuilder sb = new StringBuilder();
+
+            for (byte b : MessageDigest.getInstance("MD5").digest(data)) {
+                sb.append(String.format("%02x", b));
+            }
+
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+}
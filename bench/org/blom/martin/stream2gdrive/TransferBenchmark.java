@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.commons.cli.*;
+import com.google.api.client.http.*;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.services.drive.Drive;
+
+/**
+ * Measures upload, download and list throughput, and the allocation rate of the client side,
+ * against a {@link FakeDriveServer} running in the same JVM.
+ *
+ * Each benchmark runs a number of warm-up iterations, which are discarded, followed by the
+ * measured ones. The score is the mean throughput with its 99.9 % confidence interval, like JMH
+ * reports it. Allocations are counted per thread and exclude the server's threads. Run it with
+ * {@code ant bench}, passing options through {@code -Dbench.args="..."}.
+ */
+public class TransferBenchmark {
+    private static final int MiB = 1024 * 1024;
+
+    private final FakeDriveServer            server;
+    private final Drive                      client;
+    private final ExponentialBackOff.Builder backoffBuilder;
+    private final int                        warmups;
+    private final int                        iterations;
+
+    public static void main(String[] args)
+        throws Exception {
+        Options opt = new Options();
+
+        opt.addOption(null, "size",        true, "Transfer size, in MiB. Default is 64.");
+        opt.addOption(null, "chunk-sizes", true, "Comma-separated chunk sizes, in MiB. Default is 1,4,16.");
+        opt.addOption(null, "concurrency", true, "Comma-separated concurrency levels. Default is 1,4,8.");
+        opt.addOption(null, "files",       true, "Number of files to list. Default is 5000.");
+        opt.addOption(null, "page-sizes",  true, "Comma-separated list page sizes. Default is 100,1000.");
+        opt.addOption(null, "warmups",     true, "Warm-up iterations. Default is 2.");
+        opt.addOption(null, "iterations",  true, "Measured iterations. Default is 5.");
+        opt.addOption(null, "latency",     true, "Server latency per request, in ms. Default is 0.");
+        opt.addOption(null, "bandwidth",   true, "Server bandwidth per connection, in MiB/s. Default is unlimited.");
+        opt.addOption(null, "error-rate",  true, "Fraction of requests that fail with 503. Default is 0.");
+        opt.addOption(null, "only",        true, "Run only this benchmark: upload, download or list.");
+        opt.addOption(null, "transport",   true, "HTTP client to use: 'net' or 'apache'. Default is net.");
+
+        CommandLine cmd = new DefaultParser().parse(opt, args, false);
+
+        FakeDriveServer server = new FakeDriveServer()
+            .setLatency(Long.parseLong(cmd.getOptionValue("latency", "0")))
+            .setBandwidth((long) (Double.parseDouble(cmd.getOptionValue("bandwidth", "0")) * MiB))
+            .setErrorRate(Double.parseDouble(cmd.getOptionValue("error-rate", "0")));
+
+        try {
+            TransferBenchmark bench = new TransferBenchmark(server,
+                                                            HttpTransports.create(cmd.getOptionValue("transport", HttpTransports.NET), 32, 0),
+                                                            Integer.parseInt(cmd.getOptionValue("warmups", "2")),
+                                                            Integer.parseInt(cmd.getOptionValue("iterations", "5")));
+            String only = cmd.getOptionValue("only");
+            long   size = Long.parseLong(cmd.getOptionValue("size", "64")) * MiB;
+
+            System.out.println(String.format("%-10s %9s %5s %10s    %-7s %-7s %12s %14s",
+                                             "Benchmark", "Param", "Conc", "Score", "Error", "Units", "Alloc/op", "Alloc rate"));
+
+            for (int chunk : parseList(cmd.getOptionValue("chunk-sizes", "1,4,16"))) {
+                for (int concurrency : parseList(cmd.getOptionValue("concurrency", "1,4,8"))) {
+                    if (only == null || only.equals("upload")) {
+                        bench.upload(size, chunk * MiB, concurrency);
+                    }
+
+                    if (only == null || only.equals("download")) {
+                        bench.download(size, chunk * MiB, concurrency);
+                    }
+                }
+            }
+
+            if (only == null || only.equals("list")) {
+                for (int pageSize : parseList(cmd.getOptionValue("page-sizes", "100,1000"))) {
+                    bench.list(Integer.parseInt(cmd.getOptionValue("files", "5000")), pageSize);
+                }
+            }
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    public TransferBenchmark(FakeDriveServer server, HttpTransport transport, int warmups, int iterations) {
+        this.server     = server;
+        this.warmups    = warmups;
+        this.iterations = iterations;
+
+        backoffBuilder = new ExponentialBackOff.Builder()
+            .setInitialIntervalMillis(10)
+            .setMaxIntervalMillis(500)
+            .setMaxElapsedTimeMillis(60 * 1000);
+
+        client = new Drive.Builder(transport, JacksonFactory.getDefaultInstance(), new HttpRequestInitializer() {
+                @Override public void initialize(HttpRequest request) {
+                    // Same retry behaviour as --auto-retry, with much shorter delays
+                    request.setIOExceptionHandler(new HttpBackOffIOExceptionHandler(backoffBuilder.build()));
+                    request.setUnsuccessfulResponseHandler(new HttpBackOffUnsuccessfulResponseHandler(backoffBuilder.build()));
+                }
+            })
+            .setApplicationName("Stream2GDrive-Benchmark")
+            .setRootUrl(server.getRootUrl())
+            .build();
+    }
+
+    /** Uploads {@code size} bytes as {@code concurrency} streams at the same time. */
+    public void upload(final long size, final int chunkSize, final int concurrency)
+        throws Exception {
+        run("upload", chunkSize / MiB + " MiB", concurrency, size, "MiB/s", new Callable<Void>() {
+            @Override public Void call()
+                throws Exception {
+                List<Callable<Void>> uploads = new ArrayList<Callable<Void>>();
+
+                for (int i = 0; i < concurrency; ++i) {
+                    uploads.add(new Callable<Void>() {
+                        @Override public Void call()
+                            throws IOException {
+                            com.google.api.services.drive.model.File meta = new com.google.api.services.drive.model.File()
+                                .setTitle("bench.bin")
+                                .setMimeType("application/octet-stream");
+
+                            new ResumableUploader(client, new ChunkSizer(chunkSize, chunkSize, chunkSize, false, false))
+                                .setBackOff(backoffBuilder)
+                                .upload(meta, new PatternInputStream(size / concurrency));
+                            return null;
+                        }
+                    });
+                }
+
+                invokeAll(uploads);
+                server.clear();
+                return null;
+            }
+        });
+    }
+
+    /** Downloads one file of {@code size} bytes over {@code concurrency} connections. */
+    public void download(final long size, final int chunkSize, final int concurrency)
+        throws Exception {
+        final com.google.api.services.drive.model.File file = server.addFile("bench.bin", "root", new byte[(int) size]);
+
+        run("download", chunkSize / MiB + " MiB", concurrency, size, "MiB/s", new Callable<Void>() {
+            @Override public Void call()
+                throws IOException {
+                new ParallelDownloader(client.getRequestFactory(), concurrency, chunkSize)
+                    .download(new GenericUrl(file.getDownloadUrl()), size, new NullOutputStream());
+                return null;
+            }
+        });
+
+        server.clear();
+    }
+
+    /** Lists {@code files} files, the way the list command does, with output discarded. */
+    public void list(int files, int pageSize)
+        throws Exception {
+        for (int i = 0; i < files; ++i) {
+            server.addFile(String.format("file-%06d", i), "root", new byte[0]);
+        }
+
+        server.setMaxPageSize(pageSize);
+
+        run("list", pageSize + "/page", 1, files, "files/s", new Callable<Void>() {
+            @Override public Void call()
+                throws IOException {
+                PrintStream out = System.out;
+
+                System.setOut(new PrintStream(new NullOutputStream()));
+
+                try {
+                    Stream2GDrive.list(client, null, false, false, 1);
+                }
+                finally {
+                    System.setOut(out);
+                }
+
+                return null;
+            }
+        });
+
+        server.clear();
+    }
+
+    private void run(String name, String param, int concurrency, long units, String unit, Callable<Void> operation)
+        throws Exception {
+        AllocationMeter meter  = new AllocationMeter();
+        double[]        scores = new double[iterations];
+        long            allocated = 0;
+        long            elapsed   = 0;
+
+        for (int i = 0; i < warmups; ++i) {
+            operation.call();
+        }
+
+        for (int i = 0; i < iterations; ++i) {
+            meter.start();
+            long started = System.nanoTime();
+
+            operation.call();
+
+            long took = System.nanoTime() - started;
+
+            allocated += meter.stop();
+            elapsed   += took;
+            scores[i]  = (unit.startsWith("MiB") ? units / (double) MiB : units) / (took / 1e9);
+        }
+
+        double mean = 0;
+        double variance = 0;
+
+        for (double score : scores) {
+            mean += score / iterations;
+        }
+
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean) / Math.max(1, iterations - 1);
+        }
+
+        // Student's t for 99.9 % is about 3.3 for the usual iteration counts; good enough here
+        double error = iterations > 1 ? 3.3 * Math.sqrt(variance / iterations) : Double.NaN;
+
+        System.out.println(String.format("%-10s %9s %5d %10.1f +- %-7.1f %-7s %8.1f MiB %8.1f MiB/s",
+                                         name, param, concurrency, mean, error, unit,
+                                         allocated / (double) iterations / MiB,
+                                         allocated / (double) MiB / (elapsed / 1e9)));
+    }
+
+    private static void invokeAll(List<Callable<Void>> tasks)
+        throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(tasks.size());
+
+        try {
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                try {
+                    result.get();
+                }
+                catch (ExecutionException ex) {
+                    throw (Exception) ex.getCause();
+                }
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    private static List<Integer> parseList(String value) {
+        List<Integer> result = new ArrayList<Integer>();
+
+        for (String item : value.split(",")) {
+            result.add(Integer.parseInt(item.trim()));
+        }
+
+        return result;
+    }
+
+    /** A stream of {@code length} bytes that costs next to nothing to produce. */
+    private static class PatternInputStream
+        extends InputStream {
+        private long left;
+
+        PatternInputStream(long length) {
+            this.left = length;
+        }
+
+        @Override public int read() {
+            return left-- > 0 ? (int) (left & 0xff) : -1;
+        }
+
+        @Override public int read(byte[] b, int off, int len) {
+            if (left <= 0) {
+                return -1;
+            }
+
+            len   = (int) Math.min(len, left);
+            left -= len;
+
+            for (int i = 0; i < len; ++i) {
+                b[off + i] = (byte) (i * 31);
+            }
+
+            return len;
+        }
+    }
+
+    private static class NullOutputStream
+        extends OutputStream {
+        @Override public void write(int b) {
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    /**
+     * Adds up the bytes allocated by all client threads while it runs. Threads are sampled
+     * regularly, so worker threads that finish before {@link #stop} are still counted, except
+     * for their last few milliseconds.
+     */
+    private static class AllocationMeter {
+        private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        private final Map<Long, Long> baseline = new HashMap<Long, Long>();
+        private final Map<Long, Long> latest   = new HashMap<Long, Long>();
+
+        private Thread sampler;
+
+        void start() {
+            baseline.clear();
+            latest.clear();
+            sample(baseline);
+
+            sampler = new Thread("AllocationMeter") {
+                @Override public void run() {
+                    while (!isInterrupted()) {
+                        sample(latest);
+
+                        try {
+                            Thread.sleep(10);
+                        }
+                        catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                }
+            };
+
+            sampler.setDaemon(true);
+            sampler.start();
+        }
+
+        long stop()
+            throws InterruptedException {
+            sampler.interrupt();
+            sampler.join();
+            sample(latest);
+
+            long total = 0;
+
+            for (Map.Entry<Long, Long> entry : latest.entrySet()) {
+                Long before = baseline.get(entry.getKey());
+
+                total += entry.getValue() - (before != null ? before : 0);
+            }
+
+            return total;
+        }
+
+        private synchronized void sample(Map<Long, Long> into) {
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                // Jetty's pool threads belong to the server, and the sampler to the meter
+                if (thread.getName().contains(FakeDriveServer.THREAD_NAME) || thread.getName().equals("AllocationMeter")) {
+                    continue;
+                }
+
+                long bytes = threads.getThreadAllocatedBytes(thread.getId());
+
+                if (bytes >= 0) {
+                    into.put(thread.getId(), bytes);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.*;
+
+/**
+ * Computes an MD5 digest on a background thread, so hashing the bytes of a transfer does not
+ * slow the transfer itself down.
+ *
+ * Data is copied into a small pool of blocks and handed to the digest thread in order. File
+ * regions that have already been written can be queued as well; they are read back (normally
+ * from the page cache) by the digest thread.
+ *
+ * Every digest must end with {@link #finish} or {@link #close}, or the thread is left waiting.
+ */
+class AsyncDigest {
+    private static final int    BLOCK_SIZE = 1024 * 1024;
+    private static final int    BLOCKS     = 8;
+    private static final Object END        = new Object();
+
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(BLOCKS + 1);
+    private final BlockingQueue<byte[]> free  = new ArrayBlockingQueue<byte[]>(BLOCKS);
+    private final MessageDigest         md;
+    private final Thread                worker;
+
+    private volatile IOException error;
+    private volatile boolean     closed;
+
+    private byte[] current;
+    private int    used;
+    private String result;
+
+    public AsyncDigest()
+        throws IOException {
+        try {
+            md = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+
+        for (int i = 0; i < BLOCKS; ++i) {
+            free.add(new byte[BLOCK_SIZE]);
+        }
+
+        worker = new Thread("AsyncDigest") {
+            @Override public void run() {
+                try {
+                    Object task;
+
+                    while ((task = queue.take()) != END) {
+                        try {
+                            if (task instanceof Block) {
+                                Block block = (Block) task;
+
+                                md.update(block.data, 0, block.length);
+                                free.put(block.data);
+                            }
+                            else if (error == null) {
+                                ((Region) task).digest(md);
+                            }
+                        }
+                        catch (IOException ex) {
+                            error = ex;
+                        }
+                    }
+                }
+                catch (InterruptedException ignored) {}
+            }
+        };
+
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public synchronized void update(byte[] b, int off, int len)
+        throws IOException {
+        while (len > 0) {
+            if (current == null) {
+                current = take(free);
+                used    = 0;
+            }
+
+            int count = Math.min(len, current.length - used);
+
+            System.arraycopy(b, off, current, used, count);
+            used += count;
+            off  += count;
+            len  -= count;
+
+            if (used == current.length) {
+                flush();
+            }
+        }
+    }
+
+    /** Queues a region of a file for digesting. The channel must stay open until {@link #finish}. */
+    public synchronized void update(FileChannel channel, long position, long length)
+        throws IOException {
+        flush();
+        put(new Region(channel, position, length));
+    }
+
+    /** Waits for all queued data to be digested and returns the result as a hex string. */
+    public synchronized String finish()
+        throws IOException {
+        if (result == null) {
+            flush();
+            put(END);
+
+            try {
+                worker.join();
+            }
+            catch (InterruptedException ex) {
+                throw new InterruptedIOException("Digest interrupted");
+            }
+
+            if (error != null) {
+                throw error;
+            }
+
+            StringBuilder sb = new StringBuilder();
+
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+
+            result = sb.toString();
+        }
+
+        return result;
+    }
+
+    /**
+     * Stops the digest thread and drops the queued data, for a transfer that failed. Threads still
+     * feeding the digest get an error. Does nothing after {@link #finish}.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        worker.interrupt();
+
+        try {
+            worker.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        Object task;
+
+        // Wake up anyone waiting for room in the queue or for a free block
+        while ((task = queue.poll()) != null) {
+            if (task instanceof Block) {
+                free.offer(((Block) task).data);
+            }
+        }
+    }
+
+    /** Returns a stream that digests everything read from {@code is}, including skipped bytes. */
+    public InputStream wrap(InputStream is) {
+        return new FilterInputStream(is) {
+            @Override public int read()
+                throws IOException {
+                int b = super.read();
+
+                if (b != -1) {
+                    update(new byte[] { (byte) b }, 0, 1);
+                }
+
+                return b;
+            }
+
+            @Override public int read(byte[] b, int off, int len)
+                throws IOException {
+                int n = super.read(b, off, len);
+
+                if (n > 0) {
+                    update(b, off, n);
+                }
+
+                return n;
+            }
+
+            @Override public long skip(long n)
+                throws IOException {
+                byte[] buffer  = new byte[(int) Math.min(n, BLOCK_SIZE)];
+                long   skipped = 0;
+                int    count;
+
+                while (skipped < n && (count = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) != -1) {
+                    skipped += count;
+                }
+
+                return skipped;
+            }
+
+            @Override public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+
+    /** Returns a stream that digests everything written to {@code os}. */
+    public OutputStream wrap(OutputStream os) {
+        return new FilterOutputStream(os) {
+            @Override public void write(byte[] b, int off, int len)
+                throws IOException {
+                out.write(b, off, len);
+                update(b, off, len);
+            }
+
+            @Override public void write(int b)
+                throws IOException {
+                out.write(b);
+                update(new byte[] { (byte) b }, 0, 1);
+            }
+        };
+    }
+
+    private void flush()
+        throws IOException {
+        if (current != null && used > 0) {
+            put(new Block(current, used));
+            current = null;
+        }
+    }
+
+    private void put(Object task)
+        throws IOException {
+        checkClosed();
+
+        try {
+            queue.put(task);
+        }
+        catch (InterruptedException ex) {
+            throw new InterruptedIOException("Digest interrupted");
+        }
+
+        checkClosed();
+    }
+
+    private byte[] take(BlockingQueue<byte[]> queue)
+        throws IOException {
+        checkClosed();
+
+        try {
+            return queue.take();
+        }
+        catch (InterruptedException ex) {
+            throw new InterruptedIOException("Digest interrupted");
+        }
+        finally {
+            checkClosed();
+        }
+    }
+
+    private void checkClosed()
+        throws IOException {
+        if (closed) {
+            throw new IOException("Digest has been closed");
+        }
+    }
+
+    private static class Block {
+        final byte[] data;
+        final int    length;
+
+        Block(byte[] data, int length) {
+            this.data   = data;
+            this.length = length;
+        }
+    }
+
+    private static class Region {
+        final FileChannel channel;
+        final long        position;
+        final long        length;
+
+        Region(FileChannel channel, long position, long length) {
+            this.channel  = channel;
+            this.position = position;
+            this.length   = length;
+        }
+
+        void digest(MessageDigest md)
+            throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, BLOCK_SIZE));
+            long       done   = 0;
+
+            while (done < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - done));
+
+                int n = channel.read(buffer, position + done);
+
+                if (n < 0) {
+                    throw new EOFException("Unexpected end of file while computing checksum");
+                }
+
+                md.update(buffer.array(), 0, n);
+                done += n;
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the MD5 checksum of the transferred bytes does not match the one reported by
+ * Google Drive.
+ */
+class ChecksumMismatchException
+    extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ChecksumMismatchException(String message) {
+        super(message);
+    }
+}
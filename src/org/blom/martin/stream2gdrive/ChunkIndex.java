@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.util.*;
+import com.google.api.services.drive.Drive;
+
+/**
+ * Remembers which chunks are already in a chunk store folder, by SHA-256, along with their Drive
+ * IDs and sizes, so a deduplicating upload knows what to skip without asking the server.
+ *
+ * There is one index file per store folder. New chunks are appended as soon as they are stored,
+ * so the index stays correct even if an upload fails half-way. When the file is missing, it is
+ * rebuilt by listing the folder, where each chunk is named after its hash.
+ *
+ * Chunks trashed by this program are dropped with {@link #forget}. Chunks that disappear in other
+ * ways are noticed through the {@link DriveIndex}: the first time a chunk loaded from the file is
+ * no longer known there, the index is rebuilt.
+ */
+class ChunkIndex {
+    public static class Entry {
+        public final String id;
+        public final long   size;
+
+        public Entry(String id, long size) {
+            this.id   = id;
+            this.size = size;
+        }
+    }
+
+    private final Drive              client;
+    private final String             folder;
+    private final DriveIndex         drive;
+    private final File               file;
+    private final Map<String, Entry> entries   = new HashMap<String, Entry>();
+    private final Set<String>        unchecked = new HashSet<String>();
+
+    private Writer writer;
+
+    /**
+     * Opens the index of the store {@code folder}. Without a {@code drive} index to check the
+     * entries against, or if there is no index yet, the folder is listed first.
+     */
+    public ChunkIndex(Drive client, File directory, String folder, DriveIndex drive)
+        throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Failed to create directory '%s'", directory));
+        }
+
+        this.client = client;
+        this.folder = folder;
+        this.drive  = drive;
+        this.file   = new File(directory, folder + ".tsv");
+
+        if (file.exists() && drive != null) {
+            load();
+        }
+        else {
+            list();
+        }
+    }
+
+    /** Removes the chunks with the specified Drive IDs from all index files in {@code directory}. */
+    public static void forget(File directory, Collection<String> ids)
+        throws IOException {
+        File[] files = directory.listFiles();
+
+        if (files == null || ids.isEmpty()) {
+            return;
+        }
+
+        for (File file : files) {
+            if (!file.getName().endsWith(".tsv")) {
+                continue;
+            }
+
+            List<String>   kept    = new ArrayList<String>();
+            boolean        changed = false;
+            BufferedReader r       = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+            try {
+                String line;
+
+                while ((line = r.readLine()) != null) {
+                    String[] f = line.split("\t", -1);
+
+                    if (f[0].equals("chunk") && f.length == 4 && ids.contains(f[2])) {
+                        changed = true;
+                    }
+                    else {
+                        kept.add(line);
+                    }
+                }
+            }
+            finally {
+                r.close();
+            }
+
+            if (changed) {
+                File   tmp = new File(file.getPath() + ".tmp");
+                Writer w   = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+
+                try {
+                    for (String line : kept) {
+                        w.write(line + '\n');
+                    }
+                }
+                finally {
+                    w.close();
+                }
+
+                rename(tmp, file);
+            }
+        }
+    }
+
+    /** Returns the chunk with the specified hash, or null if the store does not hold it. */
+    public synchronized Entry get(String sha256)
+        throws IOException {
+        Entry entry = entries.get(sha256);
+
+        if (entry != null && unchecked.remove(sha256) && !drive.contains(entry.id)) {
+            // Trashed or deleted since it was recorded, so the file cannot be trusted any longer.
+            // The listing is, so this happens at most once
+            close();
+            list();
+
+            entry = entries.get(sha256);
+        }
+
+        return entry;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Records a newly stored chunk and appends it to the index file right away. */
+    public synchronized Entry put(String sha256, com.google.api.services.drive.model.File meta, long size)
+        throws IOException {
+        Entry entry = new Entry(meta.getId(), size);
+
+        entries.put(sha256, entry);
+
+        if (drive != null) {
+            // Otherwise the chunk looks missing until the index has seen it in the changes feed
+            drive.put(meta);
+        }
+
+        if (writer == null) {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+        }
+
+        write(writer, sha256, entry);
+        writer.flush();
+
+        return entry;
+    }
+
+    public synchronized void close()
+        throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private void load()
+        throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+        try {
+            String line;
+
+            while ((line = r.readLine()) != null) {
+                String[] f = line.split("\t", -1);
+
+                // A line cut short by a crash is simply skipped; that chunk is stored again
+                if (f[0].equals("chunk") && f.length == 4 && f[3].length() > 0) {
+                    entries.put(f[1], new Entry(f[2], Long.parseLong(f[3])));
+                    unchecked.add(f[1]);
+                }
+            }
+        }
+        catch (NumberFormatException ex) {
+            entries.clear();
+            unchecked.clear();
+        }
+        finally {
+            r.close();
+        }
+    }
+
+    private void list()
+        throws IOException {
+        entries.clear();
+        unchecked.clear();
+
+        new DriveLister(client, "title,fileSize", 1).walk(folder, false, new DriveLister.Visitor() {
+            @Override public void visit(String path, List<com.google.api.services.drive.model.File> files) {
+                for (com.google.api.services.drive.model.File file : files) {
+                    if (file.getFileSize() != null && file.getTitle().matches("[0-9a-f]{64}") &&
+                        !entries.containsKey(file.getTitle())) {
+                        entries.put(file.getTitle(), new Entry(file.getId(), file.getFileSize()));
+                    }
+                }
+            }
+        });
+
+        File   tmp = new File(file.getPath() + ".tmp");
+        Writer w   = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+
+        try {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                write(w, e.getKey(), e.getValue());
+            }
+        }
+        finally {
+            w.close();
+        }
+
+        rename(tmp, file);
+    }
+
+    private static void rename(File tmp, File file)
+        throws IOException {
+        // Windows will not rename over an existing file
+        file.delete();
+
+        if (!tmp.renameTo(file)) {
+            throw new IOException(String.format("Failed to save chunk index to '%s'", file));
+        }
+    }
+
+    private static void write(Writer w, String sha256, Entry entry)
+        throws IOException {
+        w.write("chunk\t" + sha256 + '\t' + entry.id + '\t' + entry.size + '\n');
+    }
+}
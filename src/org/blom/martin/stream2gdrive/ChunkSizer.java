@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+/**
+ * Decides the size of the next transfer chunk.
+ *
+ * A fixed sizer always returns the same size. An adaptive one aims for chunks that take a few
+ * seconds each: long enough that the per-request round trip does not matter, short enough that
+ * little work is lost when a chunk has to be resent. It doubles the chunk size while chunks
+ * complete quickly, halves it when they are slow or fail, and never leaves the range between
+ * the minimum and the maximum (the memory ceiling). All sizes are multiples of the minimum.
+ */
+class ChunkSizer {
+    private static final long TARGET_MILLIS = 4000;
+    private static final int  HOLD_CHUNKS   = 4;
+
+    private final int     minimum;
+    private final int     maximum;
+    private final boolean adaptive;
+    private final boolean progress;
+
+    private int size;
+    private int hold;
+
+    public ChunkSizer(int size, int minimum, int maximum, boolean adaptive, boolean progress) {
+        this.minimum  = minimum;
+        this.maximum  = Math.max(minimum, maximum / minimum * minimum);
+        this.adaptive = adaptive;
+        this.progress = progress;
+        this.size     = adaptive ? clamp(size) : size;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int maximum() {
+        return adaptive ? maximum : size;
+    }
+
+    /** Reports that a chunk of {@code bytes} bytes was transferred in {@code millis} ms. */
+    public synchronized void completed(long bytes, long millis) {
+        if (!adaptive || bytes < size) {
+            // The last chunk of a transfer is usually short and says nothing about the link
+            return;
+        }
+
+        if (hold > 0) {
+            --hold;
+        }
+        else if (millis < TARGET_MILLIS / 2) {
+            resize(size * 2L);
+        }
+        else if (millis > TARGET_MILLIS * 2) {
+            resize(size / 2L);
+        }
+    }
+
+    /** Reports that a chunk failed and has to be resent. */
+    public synchronized void failed() {
+        if (adaptive) {
+            resize(size / 2L);
+            hold = HOLD_CHUNKS;
+        }
+    }
+
+    private void resize(long requested) {
+        int next = clamp(requested);
+
+        if (next != size) {
+            size = next;
+
+            if (progress) {
+                System.err.println(String.format("Chunk size is now %.2f MiB.", size / (1024.0 * 1024)));
+            }
+        }
+    }
+
+    private int clamp(long requested) {
+        long multiple = Math.max(1, requested / minimum);
+
+        return (int) Math.min(maximum, multiple * minimum);
+    }
+}
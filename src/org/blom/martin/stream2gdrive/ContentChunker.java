@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Cuts a stream into chunks at positions chosen by the content itself, so that data inserted or
+ * removed near the start of a stream only changes the chunks around the edit, and the rest of
+ * the stream still yields the same chunks as before.
+ *
+ * A gear hash rolls over the last 64 bytes, and a chunk ends where its top bits are all zero.
+ * Chunks are never shorter than the minimum size (except the last one) or longer than the
+ * maximum, and average about the minimum plus the expected size.
+ */
+class ContentChunker {
+    public static final int MIN_SIZE      = 1024 * 1024;
+    public static final int EXPECTED_SIZE = 4 * 1024 * 1024;
+    public static final int MAX_SIZE      = 16 * 1024 * 1024;
+
+    // One random value per byte value; changing them would change every chunk boundary
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 0x5374726561643247L;
+
+        for (int i = 0; i < GEAR.length; ++i) {
+            // SplitMix64
+            long z = (seed += 0x9e3779b97f4a7c15L);
+
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final InputStream in;
+    private final int         minSize;
+    private final int         maxSize;
+    private final long        mask;
+    private final byte[]      buffer;
+
+    private int     length;
+    private boolean eof;
+
+    public ContentChunker(InputStream in) {
+        this(in, MIN_SIZE, EXPECTED_SIZE, MAX_SIZE);
+    }
+
+    /** {@code expectedSize} is rounded down to a power of two. */
+    public ContentChunker(InputStream in, int minSize, int expectedSize, int maxSize) {
+        this.in      = in;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.mask    = -1L << (64 - Integer.numberOfTrailingZeros(Integer.highestOneBit(expectedSize)));
+        this.buffer  = new byte[maxSize];
+    }
+
+    /** Returns the next chunk, or null at the end of the stream. */
+    public byte[] next()
+        throws IOException {
+        while (!eof && length < maxSize) {
+            int n = in.read(buffer, length, maxSize - length);
+
+            if (n == -1) {
+                eof = true;
+            }
+            else {
+                length += n;
+            }
+        }
+
+        if (length == 0) {
+            return null;
+        }
+
+        int  cut  = length;
+        long hash = 0;
+
+        for (int i = minSize; i < length; ++i) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+
+            if ((hash & mask) == 0) {
+                cut = i + 1;
+                break;
+            }
+        }
+
+        byte[] chunk = Arrays.copyOf(buffer, cut);
+
+        System.arraycopy(buffer, cut, buffer, 0, length - cut);
+        length -= cut;
+        return chunk;
+    }
+}
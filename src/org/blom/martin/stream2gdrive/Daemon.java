@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.net.*;
+import java.security.SecureRandom;
+import java.util.Properties;
+
+/**
+ * Serves commands over a loopback TCP port, so scripts that run many small commands only pay
+ * for JVM startup, authorization and TLS handshakes once.
+ *
+ * The port and a random token are written to a state file that only the owner can read; a
+ * client that cannot present the token is turned away. Each command is sent with the
+ * client's working directory and arguments, followed by its standard input. The daemon
+ * answers with frames of standard output and standard error, and finally the exit status.
+ *
+ * Commands run one at a time, with {@code System.in}, {@code out} and {@code err} redirected to
+ * the connection, since the transfer code writes to them directly.
+ */
+class Daemon {
+    private static final int STDOUT = 1;
+    private static final int STDERR = 2;
+    private static final int EXIT   = 3;
+
+    private static final int EX_SOFTWARE    = 70;
+    private static final int EX_UNAVAILABLE = 69;
+
+    private static final int BUFFER_SIZE   = 64 * 1024;
+    private static final int DRAIN_TIMEOUT = 10 * 1000;
+
+    private final Stream2GDrive.Session session;
+    private final File                  stateFile;
+    private final int                   port;
+    private final PrintStream           log = System.err;
+    private final Object                lock = new Object();
+
+    public Daemon(Stream2GDrive.Session session, File stateFile, int port) {
+        this.session   = session;
+        this.stateFile = stateFile;
+        this.port      = port;
+    }
+
+    /** Accepts connections until the process is terminated. */
+    public void serve()
+        throws IOException {
+        if (stateFile.exists() && ping(stateFile)) {
+            throw new IOException(String.format("A daemon is already running (see '%s')", stateFile));
+        }
+
+        final ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        final String       token  = newToken();
+
+        writeState(server.getLocalPort(), token);
+
+        Runtime.getRuntime().addShutdownHook(new Thread("Daemon shutdown") {
+            @Override public void run() {
+                stateFile.delete();
+            }
+        });
+
+        log.println(String.format("Serving commands on 127.0.0.1:%d.", server.getLocalPort()));
+
+        while (true) {
+            final Socket socket = server.accept();
+
+            Thread handler = new Thread("Daemon connection") {
+                @Override public void run() {
+                    try {
+                        handle(socket, token);
+                    }
+                    catch (EOFException ignored) {
+                        // Hung up before sending a command, like the check for a running daemon
+                    }
+                    catch (IOException ex) {
+                        log.println(String.format("Connection failed: %s.", ex.getMessage()));
+                    }
+                    finally {
+                        try {
+                            socket.close();
+                        }
+                        catch (IOException ignored) {}
+                    }
+                }
+            };
+
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    /**
+     * Sends a command line to the running daemon, relays standard input, output and error, and
+     * returns the command's exit status.
+     */
+    public static int forward(File stateFile, String[] args)
+        throws IOException {
+        Properties state = readState(stateFile);
+
+        if (state == null) {
+            System.err.println("No daemon is running; start one with 'stream2gdrive daemon'.");
+            return EX_UNAVAILABLE;
+        }
+
+        final Socket socket;
+
+        try {
+            socket = new Socket(InetAddress.getByName("127.0.0.1"), Integer.parseInt(state.getProperty("port")));
+        }
+        catch (ConnectException ex) {
+            System.err.println("The daemon is not responding; start one with 'stream2gdrive daemon'.");
+            return EX_UNAVAILABLE;
+        }
+
+        try {
+            socket.setTcpNoDelay(true);
+
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            DataInputStream        in  = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+
+            out.writeUTF(state.getProperty("token"));
+            out.writeUTF(new File("").getAbsolutePath());
+            out.writeInt(args.length);
+
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+
+            out.flush();
+
+            if (java.util.Arrays.asList(args).contains("-")) {
+                // Only put - reads standard input, so don't hold on to a terminal otherwise
+                Thread pump = new Thread("Daemon stdin") {
+                    @Override public void run() {
+                        try {
+                            copy(System.in, out);
+                            socket.shutdownOutput();
+                        }
+                        catch (IOException ignored) {}
+                    }
+                };
+
+                pump.setDaemon(true);
+                pump.start();
+            }
+
+            while (true) {
+                int type = in.readByte();
+
+                if (type == EXIT) {
+                    System.out.flush();
+                    return in.readInt();
+                }
+
+                byte[] data = new byte[in.readInt()];
+
+                in.readFully(data);
+                (type == STDOUT ? System.out : System.err).write(data);
+            }
+        }
+        catch (EOFException ex) {
+            throw new IOException("Lost connection to the daemon");
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    private void handle(Socket socket, String token)
+        throws IOException {
+        socket.setTcpNoDelay(true);
+
+        DataInputStream        in  = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+
+        if (!in.readUTF().equals(token)) {
+            throw new IOException("Invalid token from client");
+        }
+
+        File     workingDir = new File(in.readUTF());
+        String[] args       = new String[in.readInt()];
+
+        for (int i = 0; i < args.length; ++i) {
+            args[i] = in.readUTF();
+        }
+
+        int status;
+
+        synchronized (lock) {
+            InputStream stdin  = System.in;
+            PrintStream stdout = System.out;
+            PrintStream stderr = System.err;
+            PrintStream cmdout = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, STDOUT), BUFFER_SIZE));
+            PrintStream cmderr = new PrintStream(new FrameOutputStream(out, STDERR), true);
+
+            System.setIn(in);
+            System.setOut(cmdout);
+            System.setErr(cmderr);
+
+            try {
+                status = Stream2GDrive.run(args, session, workingDir);
+            }
+            catch (Throwable ex) {
+                // Report it to the client, and keep serving
+                ex.printStackTrace();
+                status = EX_SOFTWARE;
+            }
+            finally {
+                cmdout.flush();
+                cmderr.flush();
+
+                System.setIn(stdin);
+                System.setOut(stdout);
+                System.setErr(stderr);
+            }
+        }
+
+        synchronized (out) {
+            out.writeByte(EXIT);
+            out.writeInt(status);
+            out.flush();
+        }
+
+        // Unread input would make closing the socket reset the connection, and the client could
+        // lose the exit status; wait for the client to hang up instead
+        socket.shutdownOutput();
+        socket.setSoTimeout(DRAIN_TIMEOUT);
+
+        try {
+            while (in.skip(BUFFER_SIZE) > 0 || in.read() != -1) {
+                // Discard
+            }
+        }
+        catch (IOException ignored) {}
+    }
+
+    private void writeState(int port, String token)
+        throws IOException {
+        File parent = stateFile.getParentFile();
+
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException(String.format("Failed to create directory '%s'", parent));
+        }
+
+        // Restrict access before the token is written
+        OutputStream os = new FileOutputStream(stateFile);
+
+        stateFile.setReadable(false, false);
+        stateFile.setWritable(false, false);
+        stateFile.setReadable(true, true);
+        stateFile.setWritable(true, true);
+
+        try {
+            Properties state = new Properties();
+
+            state.setProperty("port",  Integer.toString(port));
+            state.setProperty("token", token);
+            state.store(os, "Stream2GDrive daemon");
+        }
+        finally {
+            os.close();
+        }
+    }
+
+    private static Properties readState(File stateFile)
+        throws IOException {
+        if (!stateFile.exists()) {
+            return null;
+        }
+
+        InputStream is = new FileInputStream(stateFile);
+
+        try {
+            Properties state = new Properties();
+
+            state.load(is);
+            return state;
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    private static boolean ping(File stateFile) {
+        try {
+            Properties state = readState(stateFile);
+
+            new Socket(InetAddress.getByName("127.0.0.1"), Integer.parseInt(state.getProperty("port"))).close();
+            return true;
+        }
+        catch (Exception ex) {
+            return false;
+        }
+    }
+
+    private static String newToken() {
+        byte[]        bytes = new byte[16];
+        StringBuilder sb    = new StringBuilder();
+
+        new SecureRandom().nextBytes(bytes);
+
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+
+        return sb.toString();
+    }
+
+    private static void copy(InputStream is, OutputStream os)
+        throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int    n;
+
+        while ((n = is.read(buffer)) != -1) {
+            os.write(buffer, 0, n);
+            os.flush();
+        }
+    }
+
+    /** Sends everything written to it as frames of one type. */
+    private static class FrameOutputStream
+        extends OutputStream {
+        private final DataOutputStream out;
+        private final int              type;
+
+        FrameOutputStream(DataOutputStream out, int type) {
+            this.out  = out;
+            this.type = type;
+        }
+
+        @Override public void write(int b)
+            throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len)
+            throws IOException {
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override public void flush()
+            throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+}
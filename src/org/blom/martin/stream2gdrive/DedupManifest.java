@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.util.*;
+import com.google.api.services.drive.Drive;
+
+/**
+ * The small object that stands in for a deduplicated upload. It lists the chunks of the stream,
+ * in order, by their IDs in the chunk store, with their sizes and SHA-256 hashes, along with the
+ * size and MD5 checksum of the whole stream. A chunk may appear more than once.
+ *
+ * The format is that of {@link Manifest}, with a record for the chunk store folder:
+ *
+ * <pre>
+ * stream2gdrive-dedup  1
+ * size                 &lt;bytes&gt;
+ * md5                  &lt;hex&gt;
+ * store                &lt;folder id&gt;
+ * chunk                &lt;id&gt;  &lt;bytes&gt;  &lt;sha-256 hex&gt;
+ * </pre>
+ */
+class DedupManifest
+    extends Manifest<DedupManifest.Chunk> {
+    public static final String MIME_TYPE = "application/x-stream2gdrive-dedup";
+
+    public static class Chunk
+        extends Manifest.Part {
+        public final String sha256;
+
+        public Chunk(String id, long size, String sha256) {
+            super(id, size);
+            this.sha256 = sha256;
+        }
+    }
+
+    private String store;
+
+    public static boolean isManifest(com.google.api.services.drive.model.File meta) {
+        return isManifest(meta, MIME_TYPE);
+    }
+
+    /** Downloads and parses the manifest stored in {@code meta}. */
+    public static DedupManifest load(Drive client, com.google.api.services.drive.model.File meta)
+        throws IOException {
+        return load(client, meta, new DedupManifest(0, null, null, Collections.<Chunk>emptyList()));
+    }
+
+    public DedupManifest(long size, String md5, String store, List<Chunk> chunks) {
+        super(MIME_TYPE, "chunk", "deduplicated upload", size, md5, chunks);
+        this.store = store;
+    }
+
+    public String getStore() {
+        return store;
+    }
+
+    public List<Chunk> getChunks() {
+        return getParts();
+    }
+
+    @Override protected Chunk newPart(String id, long size, String hash) {
+        return new Chunk(id, size, hash);
+    }
+
+    @Override protected String hashOf(Chunk chunk) {
+        return chunk.sha256;
+    }
+
+    @Override protected void writeRecords(StringBuilder sb) {
+        sb.append("store\t").append(store).append('\n');
+    }
+
+    @Override protected boolean readRecord(String[] fields) {
+        if (fields[0].equals("store") && fields.length == 2) {
+            store = fields[1];
+            return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.services.drive.Drive;
+
+/**
+ * Uploads a stream as content-defined chunks into a shared chunk store folder, sending only the
+ * chunks that the store does not hold yet, and stores a {@link DedupManifest} under the
+ * requested name.
+ *
+ * The stream is cut by a {@link ContentChunker}, and each chunk is named after its SHA-256 hash.
+ * Repeated backups of mostly unchanged data therefore only send the chunks around the changes.
+ * Chunks are hashed and uploaded by up to {@code jobs} threads, and at most {@code jobs + 1}
+ * chunks are held in memory. Chunks that were stored before a failure are kept and recorded in
+ * the {@link ChunkIndex}, so running the backup again continues where it stopped.
+ */
+class DedupUploader {
+    private final Drive                                     client;
+    private final String                                    store;
+    private final ChunkIndex                                index;
+    private final int                                       jobs;
+    private final StripedUploader.UploaderFactory           factory;
+    private final Map<String, FutureTask<ChunkIndex.Entry>> pending = new HashMap<String, FutureTask<ChunkIndex.Entry>>();
+
+    private boolean progress;
+    private long    sent;
+    private int     stored;
+
+    private volatile IOException failure;
+
+    public DedupUploader(Drive client, String store, ChunkIndex index, int jobs, StripedUploader.UploaderFactory factory) {
+        this.client  = client;
+        this.store   = store;
+        this.index   = index;
+        this.jobs    = jobs;
+        this.factory = factory;
+    }
+
+    public DedupUploader setProgress(boolean progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /** Uploads the new chunks of the stream and returns the manifest object. */
+    public com.google.api.services.drive.model.File upload(com.google.api.services.drive.model.File meta, InputStream is)
+        throws IOException {
+        AsyncDigest                        digest  = new AsyncDigest();
+        ContentChunker                     chunker = new ContentChunker(digest.wrap(is));
+        ExecutorService                    pool    = Executors.newFixedThreadPool(jobs);
+        Semaphore                          slots   = new Semaphore(jobs + 1);
+        List<Future<DedupManifest.Chunk>>  results = new ArrayList<Future<DedupManifest.Chunk>>();
+        long                               total   = 0;
+        long                               started = System.currentTimeMillis();
+
+        if (progress) {
+            System.err.println(String.format("Starting deduplicated upload; the store holds %d chunks ...", index.size()));
+        }
+
+        try {
+            byte[] chunk;
+
+            while (failure == null) {
+                acquire(slots);
+
+                if ((chunk = chunker.next()) == null) {
+                    break;
+                }
+
+                results.add(pool.submit(store(chunk, slots)));
+                total += chunk.length;
+            }
+
+            List<DedupManifest.Chunk> chunks = new ArrayList<DedupManifest.Chunk>(results.size());
+
+            for (Future<DedupManifest.Chunk> result : results) {
+                chunks.add(get(result));
+            }
+
+            DedupManifest manifest = new DedupManifest(total, digest.finish(), store, chunks);
+
+            com.google.api.services.drive.model.File info = new com.google.api.services.drive.model.File()
+                .setTitle(meta.getTitle())
+                .setMimeType(DedupManifest.MIME_TYPE)
+                .setParents(meta.getParents())
+                .setDescription(String.format("Deduplicated upload of %d bytes in %d chunks (%s)",
+                                              total, chunks.size(), meta.getMimeType()));
+
+            Drive.Files.Insert insert = client.files().insert(info, new ByteArrayContent(DedupManifest.MIME_TYPE,
+                                                                                         manifest.toBytes()));
+            insert.getMediaHttpUploader().setDirectUploadEnabled(true);
+
+            com.google.api.services.drive.model.File result = insert.execute();
+
+            if (progress) {
+                synchronized (this) {
+                    System.err.println(String.format("Done! %d bytes in %d chunks, of which %d new (%d MiB sent in %.1f s).",
+                                                     total, chunks.size(), stored, sent / 1024 / 1024,
+                                                     (System.currentTimeMillis() - started) / 1000.0));
+                }
+            }
+
+            return result;
+        }
+        finally {
+            pool.shutdownNow();
+            digest.close();
+        }
+    }
+
+    private Callable<DedupManifest.Chunk> store(final byte[] chunk, final Semaphore slots) {
+        return new Callable<DedupManifest.Chunk>() {
+            @Override public DedupManifest.Chunk call()
+                throws IOException {
+                try {
+                    String           sha256 = hex(digest("SHA-256", chunk));
+                    ChunkIndex.Entry entry  = index.get(sha256);
+
+                    if (entry == null) {
+                        entry = upload(sha256, chunk);
+                    }
+
+                    return new DedupManifest.Chunk(entry.id, chunk.length, sha256);
+                }
+                catch (IOException ex) {
+                    // Stop reading more chunks; the error itself is reported from upload()
+                    failure = ex;
+                    throw ex;
+                }
+                finally {
+                    slots.release();
+                }
+            }
+        };
+    }
+
+    /** Uploads a chunk, unless another thread is already uploading the same one. */
+    private ChunkIndex.Entry upload(final String sha256, final byte[] chunk)
+        throws IOException {
+        FutureTask<ChunkIndex.Entry> task;
+        boolean                      mine = false;
+
+        synchronized (pending) {
+            ChunkIndex.Entry entry = index.get(sha256);
+
+            // Another thread may have stored it since the caller looked
+            if (entry != null) {
+                return entry;
+            }
+
+            task = pending.get(sha256);
+
+            if (task == null) {
+                task = new FutureTask<ChunkIndex.Entry>(new Callable<ChunkIndex.Entry>() {
+                    @Override public ChunkIndex.Entry call()
+                        throws IOException {
+                        com.google.api.services.drive.model.File meta = new com.google.api.services.drive.model.File()
+                            .setTitle(sha256)
+                            .setMimeType("application/octet-stream")
+                            .setParents(Arrays.asList(new com.google.api.services.drive.model.ParentReference().setId(store)));
+
+                        meta = factory.create().upload(meta, new ByteArrayInputStream(chunk));
+
+                        String md5 = hex(digest("MD5", chunk));
+
+                        if (!md5.equalsIgnoreCase(meta.getMd5Checksum())) {
+                            throw new ChecksumMismatchException(String.format("MD5 of chunk %s is %s, but Google Drive reports %s",
+                                                                              sha256, md5, meta.getMd5Checksum()));
+                        }
+
+                        ChunkIndex.Entry entry = index.put(sha256, meta, chunk.length);
+
+                        synchronized (DedupUploader.this) {
+                            sent += chunk.length;
+                            ++stored;
+                        }
+
+                        return entry;
+                    }
+                });
+
+                pending.put(sha256, task);
+                mine = true;
+            }
+        }
+
+        if (mine) {
+            task.run();
+
+            synchronized (pending) {
+                // The index has it now, or the upload failed and the whole upload stops
+                pending.remove(sha256);
+            }
+        }
+
+        return get(task);
+    }
+
+    private static void acquire(Semaphore slots)
+        throws IOException {
+        try {
+            slots.acquire();
+        }
+        catch (InterruptedException ex) {
+            throw new InterruptedIOException("Upload interrupted");
+        }
+    }
+
+    private static <T> T get(Future<T> future)
+        throws IOException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException ex) {
+            throw new InterruptedIOException("Upload interrupted");
+        }
+        catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            else if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            else {
+                throw new IOException(ex.getCause());
+            }
+        }
+    }
+
+    private static byte[] digest(String algorithm, byte[] data)
+        throws IOException {
+        try {
+            return MessageDigest.getInstance(algorithm).digest(data);
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,507 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.*;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.ParentReference;
+
+/**
+ * A persistent index of the metadata of every file and folder in Google Drive, used to resolve
+ * names and nested {@code a/b/c} paths to file IDs without a round trip to the server.
+ *
+ * The index is built once by listing everything, and is then kept current by applying the
+ * Drive changes feed, starting from a stored page token, whenever it is older than the
+ * configured maximum age. Listing everything can take a long time, so it is only done when
+ * building is allowed; until then, {@link #isUsable} returns false.
+ */
+class DriveIndex {
+    private static final String FIELDS = "id,title,mimeType,parents/id,fileSize,md5Checksum,modifiedDate,labels/trashed";
+
+    private final Drive   client;
+    private final File    file;
+    private final long    maxAge;
+    private final boolean build;
+    private final boolean progress;
+
+    private String  rootId;
+    private String  token;
+    private long    synced;
+    private boolean dirty;
+
+    private Map<String, Entry>       entries  = new HashMap<String, Entry>();
+    private Map<String, List<Entry>> children = new HashMap<String, List<Entry>>();
+
+    /**
+     * Opens the index stored in {@code file}. With {@code build}, a missing or expired index is
+     * rebuilt when it is first needed.
+     */
+    public DriveIndex(Drive client, File file, long maxAge, boolean build, boolean progress)
+        throws IOException {
+        this.client   = client;
+        this.file     = file;
+        this.maxAge   = maxAge;
+        this.build    = build;
+        this.progress = progress;
+
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * Brings the index up to date and returns true if it can be used to look up names. Returns
+     * false, and forgets the stored index, if it would have to be rebuilt but building is not
+     * allowed.
+     */
+    public synchronized boolean isUsable()
+        throws IOException {
+        if (token == null && !build) {
+            return false;
+        }
+
+        return update();
+    }
+
+    /** Brings the index up to date, unless it was synchronized less than max-age ago. */
+    public synchronized void refresh()
+        throws IOException {
+        if (!update()) {
+            throw new IOException("The local index has expired; use --index to rebuild it");
+        }
+    }
+
+    private boolean update()
+        throws IOException {
+        if (token != null && System.currentTimeMillis() - synced < maxAge) {
+            return true;
+        }
+
+        boolean updated = false;
+
+        if (token != null) {
+            try {
+                applyChanges();
+                updated = true;
+            }
+            catch (HttpResponseException ex) {
+                if (ex.getStatusCode() / 100 != 4) {
+                    throw ex;
+                }
+
+                // The stored page token is no longer valid; start over
+            }
+        }
+
+        if (!updated && !build) {
+            token = null;
+            entries.clear();
+            children.clear();
+            file.delete();
+            return false;
+        }
+        else if (!updated) {
+            rebuild();
+        }
+
+        // Keep what was fetched even if the command that asked for it fails later on
+        save();
+        return true;
+    }
+
+    /**
+     * Returns the ID of a folder, or null if the index does not know about it. Names containing a
+     * '/' are paths relative to the root folder; other names match a folder with that title
+     * anywhere.
+     */
+    public synchronized String findFolder(String name)
+        throws IOException {
+        refresh();
+
+        List<Entry> found = new ArrayList<Entry>();
+
+        if (name.indexOf('/') != -1) {
+            Entry entry = walk(rootId, name, true);
+
+            if (entry != null) {
+                found.add(entry);
+            }
+        }
+        else {
+            for (Entry entry : entries.values()) {
+                if (entry.isFolder() && entry.title.equals(name)) {
+                    found.add(entry);
+                }
+            }
+        }
+
+        return found.isEmpty() ? null : unique(found, name, "Folder", "folder").id;
+    }
+
+    /** Returns the ID of the folder called {@code name} inside {@code parent}, or null. */
+    public synchronized String findFolder(String parent, String name)
+        throws IOException {
+        refresh();
+
+        Entry entry = walk(parent.equals("root") ? rootId : parent, name, true);
+
+        return entry != null ? entry.id : null;
+    }
+
+    /**
+     * Returns the metadata of the file called {@code name}, which may be a path, inside the
+     * folder {@code parent}, or null if the index does not know about it.
+     */
+    public synchronized com.google.api.services.drive.model.File findFile(String name, String parent)
+        throws IOException {
+        refresh();
+
+        String      folder = parent.equals("root") ? rootId : parent;
+        int         slash  = name.lastIndexOf('/');
+        List<Entry> found  = new ArrayList<Entry>();
+
+        if (slash != -1) {
+            Entry dir = walk(folder, name.substring(0, slash), true);
+
+            folder = dir != null ? dir.id : null;
+            name   = name.substring(slash + 1);
+        }
+
+        if (folder != null && children.containsKey(folder)) {
+            for (Entry entry : children.get(folder)) {
+                if (!entry.isFolder() && entry.title.equals(name)) {
+                    found.add(entry);
+                }
+            }
+        }
+
+        return found.isEmpty() ? null : unique(found, name, "File", "document").toFile();
+    }
+
+    /** Returns true if the file with the specified ID exists and is not in the trash. */
+    public synchronized boolean contains(String id)
+        throws IOException {
+        refresh();
+
+        return entries.containsKey(id);
+    }
+
+    /** Records a file that this process created or updated. */
+    public synchronized void put(com.google.api.services.drive.model.File meta) {
+        if (token != null) {
+            // Until the index has been built, there is nothing to keep current
+            record(meta);
+        }
+    }
+
+    private void record(com.google.api.services.drive.model.File meta) {
+        remove(meta.getId());
+
+        Entry entry = new Entry();
+
+        entry.id       = meta.getId();
+        entry.title    = meta.getTitle() != null ? meta.getTitle() : "";
+        entry.mime     = meta.getMimeType();
+        entry.size     = meta.getFileSize() != null ? meta.getFileSize() : -1;
+        entry.md5      = meta.getMd5Checksum();
+        entry.modified = meta.getModifiedDate() != null ? meta.getModifiedDate().getValue() : 0;
+        entry.parents  = new ArrayList<String>();
+
+        if (meta.getParents() != null) {
+            for (ParentReference parent : meta.getParents()) {
+                entry.parents.add(parent.getId());
+            }
+        }
+
+        add(entry);
+    }
+
+    /** Forgets a file that this process trashed or deleted. */
+    public synchronized void remove(String id) {
+        Entry entry = entries.remove(id);
+
+        if (entry != null) {
+            for (String parent : entry.parents) {
+                List<Entry> siblings = children.get(parent);
+
+                if (siblings != null) {
+                    siblings.remove(entry);
+                }
+            }
+
+            dirty = true;
+        }
+    }
+
+    public synchronized void save()
+        throws IOException {
+        if (!dirty) {
+            return;
+        }
+
+        File   tmp = new File(file.getPath() + ".tmp");
+        Writer w   = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+
+        try {
+            w.write(String.format("root\t%s\ntoken\t%s\nsynced\t%d\n", rootId, token, synced));
+
+            for (Entry entry : entries.values()) {
+                StringBuilder parents = new StringBuilder();
+
+                for (String parent : entry.parents) {
+                    parents.append(parents.length() == 0 ? "" : ",").append(parent);
+                }
+
+                w.write(String.format("file\t%s\t%s\t%s\t%s\t%d\t%s\t%d\n",
+                                      entry.id, parents, URLEncoder.encode(entry.title, "UTF-8"), entry.mime,
+                                      entry.size, entry.md5 != null ? entry.md5 : "-", entry.modified));
+            }
+        }
+        finally {
+            w.close();
+        }
+
+        // Windows will not rename over an existing file
+        file.delete();
+
+        if (!tmp.renameTo(file)) {
+            throw new IOException(String.format("Failed to save index to '%s'", file));
+        }
+
+        dirty = false;
+    }
+
+    private void load()
+        throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+        try {
+            String line;
+
+            while ((line = r.readLine()) != null) {
+                String[] f = line.split("\t", -1);
+
+                if (f[0].equals("root")) {
+                    rootId = f[1];
+                }
+                else if (f[0].equals("token")) {
+                    token = f[1].equals("null") ? null : f[1];
+                }
+                else if (f[0].equals("synced")) {
+                    synced = Long.parseLong(f[1]);
+                }
+                else if (f[0].equals("file") && f.length == 8) {
+                    Entry entry = new Entry();
+
+                    entry.id       = f[1];
+                    entry.parents  = f[2].isEmpty() ? new ArrayList<String>() : new ArrayList<String>(Arrays.asList(f[2].split(",")));
+                    entry.title    = URLDecoder.decode(f[3], "UTF-8");
+                    entry.mime     = f[4];
+                    entry.size     = Long.parseLong(f[5]);
+                    entry.md5      = f[6].equals("-") ? null : f[6];
+                    entry.modified = Long.parseLong(f[7]);
+
+                    add(entry);
+                }
+            }
+        }
+        catch (RuntimeException ex) {
+            // A damaged index is simply rebuilt
+            token = null;
+        }
+        finally {
+            r.close();
+        }
+
+        dirty = false;
+    }
+
+    private void rebuild()
+        throws IOException {
+        if (progress) {
+            System.err.println("Building local index ...");
+        }
+
+        entries.clear();
+        children.clear();
+
+        // Fetch the token first, so nothing that changes during the listing is missed
+        String start = client.changes().getStartPageToken().execute().getStartPageToken();
+
+        rootId = client.about().get().setFields("rootFolderId").execute().getRootFolderId();
+
+        com.google.api.services.drive.Drive.Files.List request = client.files().list()
+            .setQ("trashed=false")
+            .setFields("nextPageToken,items(" + FIELDS + ")")
+            .setMaxResults(1000);
+
+        do {
+            com.google.api.services.drive.model.FileList files = request.execute();
+
+            for (com.google.api.services.drive.model.File meta : files.getItems()) {
+                record(meta);
+            }
+
+            request.setPageToken(files.getNextPageToken());
+        } while (request.getPageToken() != null && request.getPageToken().length() > 0);
+
+        token  = start;
+        synced = System.currentTimeMillis();
+        dirty  = true;
+
+        if (progress) {
+            System.err.println(String.format("Indexed %d files.", entries.size()));
+        }
+    }
+
+    private void applyChanges()
+        throws IOException {
+        com.google.api.services.drive.Drive.Changes.List request = client.changes().list()
+            .setPageToken(token)
+            .setIncludeDeleted(true)
+            .setFields("nextPageToken,largestChangeId,items(fileId,deleted,file(" + FIELDS + "))")
+            .setMaxResults(1000);
+
+        Long largest = null;
+
+        do {
+            com.google.api.services.drive.model.ChangeList changes = request.execute();
+
+            for (com.google.api.services.drive.model.Change change : changes.getItems()) {
+                com.google.api.services.drive.model.File meta = change.getFile();
+
+                if (Boolean.TRUE.equals(change.getDeleted()) || meta == null ||
+                    (meta.getLabels() != null && Boolean.TRUE.equals(meta.getLabels().getTrashed()))) {
+                    remove(change.getFileId());
+                }
+                else {
+                    record(meta);
+                }
+            }
+
+            largest = changes.getLargestChangeId();
+            request.setPageToken(changes.getNextPageToken());
+        } while (request.getPageToken() != null && request.getPageToken().length() > 0);
+
+        if (largest != null) {
+            token = Long.toString(largest + 1);
+        }
+
+        synced = System.currentTimeMillis();
+        dirty  = true;
+    }
+
+    private void add(Entry entry) {
+        entries.put(entry.id, entry);
+
+        for (String parent : entry.parents) {
+            List<Entry> siblings = children.get(parent);
+
+            if (siblings == null) {
+                siblings = new ArrayList<Entry>();
+                children.put(parent, siblings);
+            }
+
+            siblings.add(entry);
+        }
+
+        dirty = true;
+    }
+
+    private Entry walk(String folder, String path, boolean folders) {
+        Entry entry = null;
+
+        for (String name : path.split("/")) {
+            if (name.isEmpty()) {
+                continue;
+            }
+
+            entry = null;
+
+            if (children.containsKey(folder)) {
+                for (Entry child : children.get(folder)) {
+                    if (child.isFolder() == folders && child.title.equals(name)) {
+                        entry = child;
+                        break;
+                    }
+                }
+            }
+
+            if (entry == null) {
+                return null;
+            }
+
+            folder = entry.id;
+        }
+
+        return entry;
+    }
+
+    private static Entry unique(List<Entry> found, String name, String type, String plural)
+        throws IOException {
+        if (found.size() != 1) {
+            throw new IOException(String.format("%s '%s' matched more than one %s", type, name, plural));
+        }
+        else {
+            return found.get(0);
+        }
+    }
+
+    private class Entry {
+        String       id;
+        List<String> parents;
+        String       title;
+        String       mime;
+        long         size;
+        String       md5;
+        long         modified;
+
+        boolean isFolder() {
+            return FolderCache.FOLDER_MIME_TYPE.equals(mime);
+        }
+
+        com.google.api.services.drive.model.File toFile() {
+            List<ParentReference> refs = new ArrayList<ParentReference>();
+
+            for (String parent : parents) {
+                refs.add(new ParentReference().setId(parent));
+            }
+
+            com.google.api.services.drive.model.File meta = new com.google.api.services.drive.model.File()
+                .setId(id)
+                .setTitle(title)
+                .setMimeType(mime)
+                .setParents(refs)
+                .setMd5Checksum(md5)
+                .setModifiedDate(new DateTime(modified));
+
+            if (size >= 0) {
+                meta.setFileSize(size);
+            }
+
+            if (mime != null && !mime.startsWith("application/vnd.google-apps.")) {
+                // Listed download URLs are short-lived, so always go through the API instead
+                meta.setDownloadUrl(client.getRootUrl() + client.getServicePath() + "files/" + id + "?alt=media");
+            }
+
+            return meta;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.FileList;
+
+/**
+ * Lists the files in a folder, and optionally in all its subfolders, a page at a time. The next
+ * page of a folder is fetched while the current one is being processed, and subfolders are
+ * walked on a fixed number of threads. Only the requested fields are fetched.
+ *
+ * Each instance performs a single walk.
+ */
+class DriveLister {
+    /** Receives the files found, one page at a time. */
+    public interface Visitor {
+        /**
+         * Called for each page of files in a folder, in order. {@code path} is the folder's path
+         * relative to where the walk started, ending with '/', or empty for the starting folder.
+         * Pages from different folders may be passed on several threads at the same time.
+         */
+        void visit(String path, List<com.google.api.services.drive.model.File> files)
+            throws IOException;
+    }
+
+    private final Drive           client;
+    private final String          fields;
+    private final ExecutorService walkers;
+    private final ExecutorService fetchers = Executors.newCachedThreadPool();
+
+    private int         pending;
+    private IOException failure;
+
+    /**
+     * Creates a lister that fetches {@code fields} (a comma-separated list, like
+     * {@code "title,md5Checksum"}) of each file and walks up to {@code jobs} folders at a time.
+     * The ID and MIME type are always included, and a recursive walk needs the title too.
+     */
+    public DriveLister(Drive client, String fields, int jobs) {
+        this.client  = client;
+        this.fields  = "nextPageToken,items(id,mimeType," + fields + ")";
+        this.walkers = Executors.newFixedThreadPool(jobs);
+    }
+
+    /** Passes all files in {@code folder}, and with {@code recursive} its subfolders, to {@code visitor}. */
+    public void walk(String folder, boolean recursive, Visitor visitor)
+        throws IOException {
+        try {
+            submit(folder, "", recursive, visitor);
+
+            synchronized (this) {
+                while (pending > 0 && failure == null) {
+                    wait();
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            throw new InterruptedIOException("Listing interrupted");
+        }
+        finally {
+            walkers.shutdownNow();
+            fetchers.shutdownNow();
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void submit(final String folder, final String path, final boolean recursive, final Visitor visitor) {
+        synchronized (this) {
+            ++pending;
+        }
+
+        walkers.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    list(folder, path, recursive, visitor);
+                    done(null);
+                }
+                catch (IOException ex) {
+                    done(ex);
+                }
+                catch (RuntimeException ex) {
+                    done(new IOException(ex));
+                }
+            }
+        });
+    }
+
+    private synchronized void done(IOException ex) {
+        if (failure == null) {
+            failure = ex;
+        }
+
+        --pending;
+        notifyAll();
+    }
+
+    private void list(String folder, String path, boolean recursive, Visitor visitor)
+        throws IOException {
+        FileList page = request(folder, recursive, null).execute();
+
+        while (page != null) {
+            String           token = page.getNextPageToken();
+            Future<FileList> next  = null;
+
+            if (token != null && token.length() > 0) {
+                final Drive.Files.List request = request(folder, recursive, token);
+
+                next = fetchers.submit(new Callable<FileList>() {
+                    @Override public FileList call()
+                        throws IOException {
+                        return request.execute();
+                    }
+                });
+            }
+
+            // An empty page may come without any items at all when fields are selected
+            List<com.google.api.services.drive.model.File> items = page.getItems() != null
+                ? page.getItems() : Collections.<com.google.api.services.drive.model.File>emptyList();
+            List<com.google.api.services.drive.model.File> files =
+                new ArrayList<com.google.api.services.drive.model.File>(items.size());
+
+            for (com.google.api.services.drive.model.File file : items) {
+                if (FolderCache.FOLDER_MIME_TYPE.equals(file.getMimeType())) {
+                    submit(file.getId(), path + file.getTitle() + "/", recursive, visitor);
+                }
+                else {
+                    files.add(file);
+                }
+            }
+
+            visitor.visit(path, files);
+            page = next != null ? get(next) : null;
+        }
+    }
+
+    private Drive.Files.List request(String folder, boolean recursive, String token)
+        throws IOException {
+        // Folders are only needed to walk into them
+        String query = recursive
+            ? String.format("'%s' in parents and trashed=false", folder)
+            : String.format("'%s' in parents and mimeType!='%s' and trashed=false", folder, FolderCache.FOLDER_MIME_TYPE);
+
+        return client.files().list()
+            .setQ(query)
+            .setFields(fields)
+            .setMaxResults(1000)
+            .setPageToken(token);
+    }
+
+    private static FileList get(Future<FileList> page)
+        throws IOException {
+        try {
+            return page.get();
+        }
+        catch (InterruptedException ex) {
+            throw new InterruptedIOException("Listing interrupted");
+        }
+        catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        }
+    }
+}
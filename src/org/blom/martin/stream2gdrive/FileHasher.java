@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes the MD5 checksums of many local files on several threads.
+ *
+ * The files are sorted by size and handed out largest first from one shared queue, so the big
+ * files, which cannot be split, start right away, and the small ones even out the load at the
+ * end. Large files are read through memory-mapped windows, which saves copying them through
+ * the Java heap, and small files through a buffer that each thread reuses.
+ */
+class FileHasher {
+    /** Receives the checksum of each file, or the error that prevented it, on the hashing threads. */
+    public interface Listener {
+        void hashed(String path, File file, String md5, IOException error);
+    }
+
+    private static final long MAP_THRESHOLD = 4L * 1024 * 1024;
+    private static final long MAP_WINDOW    = 128L * 1024 * 1024;
+    private static final int  BUFFER_SIZE   = 1024 * 1024;
+
+    private final int threads;
+
+    public FileHasher(int threads) {
+        this.threads = threads;
+    }
+
+    /** Hashes {@code files}, by path, and returns the number of bytes read. */
+    public long hash(Map<String, File> files, final Listener listener)
+        throws IOException {
+        final List<Job>     jobs  = new ArrayList<Job>(files.size());
+        final AtomicInteger next  = new AtomicInteger();
+        long                total = 0;
+
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            jobs.add(new Job(file.getKey(), file.getValue()));
+            total += jobs.get(jobs.size() - 1).size;
+        }
+
+        Collections.sort(jobs, new Comparator<Job>() {
+            @Override public int compare(Job a, Job b) {
+                return a.size < b.size ? 1 : a.size > b.size ? -1 : 0;
+            }
+        });
+
+        ExecutorService      pool    = Executors.newFixedThreadPool(threads);
+        List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+
+        for (int i = 0; i < threads; ++i) {
+            workers.add(new Callable<Void>() {
+                @Override public Void call()
+                    throws IOException {
+                    MessageDigest md     = md5();
+                    ByteBuffer    buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                    int           i;
+
+                    while ((i = next.getAndIncrement()) < jobs.size()) {
+                        Job job = jobs.get(i);
+
+                        try {
+                            listener.hashed(job.path, job.file, hash(job.file, md, buffer), null);
+                        }
+                        catch (IOException ex) {
+                            listener.hashed(job.path, job.file, null, ex);
+                        }
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> worker : pool.invokeAll(workers)) {
+                worker.get();
+            }
+        }
+        catch (InterruptedException ex) {
+            throw new InterruptedIOException("Hashing interrupted");
+        }
+        catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+
+        return total;
+    }
+
+    private static String hash(File file, MessageDigest md, ByteBuffer buffer)
+        throws IOException {
+        FileInputStream fis     = new FileInputStream(file);
+        FileChannel     channel = fis.getChannel();
+
+        md.reset();
+
+        try {
+            long size = channel.size();
+
+            if (size >= MAP_THRESHOLD) {
+                for (long position = 0; position < size; position += MAP_WINDOW) {
+                    md.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
+                }
+            }
+            else {
+                buffer.clear();
+
+                while (channel.read(buffer) > 0 || buffer.position() > 0) {
+                    md.update(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+            }
+        }
+        finally {
+            fis.close();
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        for (byte b : md.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+
+        return sb.toString();
+    }
+
+    private static MessageDigest md5()
+        throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static class Job {
+        final String path;
+        final File   file;
+        final long   size;
+
+        Job(String path, File file) {
+            this.path = path;
+            this.file = file;
+            this.size = file.length();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.util.*;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.ParentReference;
+
+/**
+ * Resolves folder names to Google Drive folder IDs, optionally creating missing folders, and
+ * remembers the result so each folder is only looked up once.
+ */
+class FolderCache {
+    public static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+
+    private final Drive               client;
+    private final DriveIndex          index;
+    private final Map<String, String> ids = new HashMap<String, String>();
+
+    public FolderCache(Drive client, DriveIndex index) {
+        this.client = client;
+        this.index  = index;
+    }
+
+    /** Returns the ID of the folder called {@code name} inside the folder {@code parent}. */
+    public synchronized String resolve(String parent, String name, boolean create)
+        throws IOException {
+        String key = parent + '/' + name;
+        String id  = ids.get(key);
+
+        if (id == null && index != null) {
+            id = index.findFolder(parent, name);
+        }
+
+        if (id == null) {
+            List<com.google.api.services.drive.model.File> folder = client.files().list()
+                .setQ(String.format("title='%s' and '%s' in parents and mimeType='%s' and trashed=false",
+                                    name, parent, FOLDER_MIME_TYPE))
+                .execute()
+                .getItems();
+
+            if (folder.size() > 1) {
+                throw new IOException(String.format("Folder '%s' matched more than one folder", name));
+            }
+            else if (folder.size() == 1) {
+                id = folder.get(0).getId();
+            }
+            else if (create) {
+                com.google.api.services.drive.model.File meta = new com.google.api.services.drive.model.File()
+                    .setTitle(name)
+                    .setMimeType(FOLDER_MIME_TYPE)
+                    .setParents(Arrays.asList(new ParentReference().setId(parent)));
+
+                meta = client.files().insert(meta).execute();
+                id   = meta.getId();
+
+                if (index != null) {
+                    index.put(meta);
+                }
+            }
+            else {
+                throw new IOException(String.format("Folder '%s' not found", name));
+            }
+
+            ids.put(key, id);
+        }
+
+        return id;
+    }
+}
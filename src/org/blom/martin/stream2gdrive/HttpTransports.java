@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.util.SslUtils;
+
+/**
+ * Creates the HTTP transport selected with {@code --transport}.
+ *
+ * <ul>
+ *   <li>{@code net} uses {@code HttpURLConnection}, whose keep-alive cache is enlarged to hold
+ *       {@code maxConnections} idle connections per host instead of the JDK's five.</li>
+ *   <li>{@code apache} uses a pooled Apache HttpClient with persistent connections, Nagle's
+ *       algorithm disabled and, optionally, fixed socket buffer sizes.</li>
+ * </ul>
+ *
+ * Both trust the same certificates as the Google API client's default transport.
+ */
+class HttpTransports {
+    public static final String NET    = "net";
+    public static final String APACHE = "apache";
+
+    /** Idle pooled connections are checked before reuse after this many milliseconds. */
+    private static final int  VALIDATE_AFTER_INACTIVITY = 2000;
+    private static final long MAX_IDLE_SECONDS          = 60;
+
+    /**
+     * Returns a new transport of the specified kind.
+     *
+     * @param maxConnections  the maximum number of connections kept per host
+     * @param socketBuffer    the TCP send and receive buffer size in bytes, or 0 for the
+     *                        operating system's default
+     */
+    public static HttpTransport create(String kind, int maxConnections, int socketBuffer)
+        throws GeneralSecurityException, IOException {
+        if (kind.equals(NET)) {
+            // Read once, when HttpURLConnection's keep-alive cache is first used
+            if (System.getProperty("http.maxConnections") == null) {
+                System.setProperty("http.maxConnections", Integer.toString(maxConnections));
+            }
+
+            return GoogleNetHttpTransport.newTrustedTransport();
+        }
+        else if (kind.equals(APACHE)) {
+            return newApacheTransport(maxConnections, socketBuffer);
+        }
+        else {
+            throw new IllegalArgumentException(String.format("Unknown transport '%s'", kind));
+        }
+    }
+
+    private static HttpTransport newApacheTransport(int maxConnections, int socketBuffer)
+        throws GeneralSecurityException, IOException {
+        SSLContext ssl = SslUtils.initSslContext(SslUtils.getTlsSslContext(),
+                                                 GoogleUtils.getCertificateTrustStore(),
+                                                 SslUtils.getPkixTrustManagerFactory());
+
+        PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(
+            RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http",  PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(ssl))
+                .build());
+
+        SocketConfig.Builder socket = SocketConfig.custom()
+            .setTcpNoDelay(true)
+            .setSoKeepAlive(true);
+
+        if (socketBuffer > 0) {
+            socket.setSndBufSize(socketBuffer).setRcvBufSize(socketBuffer);
+        }
+
+        pool.setMaxTotal(maxConnections);
+        pool.setDefaultMaxPerRoute(maxConnections);
+        pool.setDefaultSocketConfig(socket.build());
+        pool.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+
+        // Redirects, retries and gzip are handled by the Google API client itself
+        return new ApacheHttpTransport(new LegacyParamsClient(HttpClients.custom()
+                                       .setConnectionManager(pool)
+                                       .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                                       .evictIdleConnections(MAX_IDLE_SECONDS, TimeUnit.SECONDS)
+                                       .disableRedirectHandling()
+                                       .disableAutomaticRetries()
+                                       .disableContentCompression()
+                                       .useSystemProperties()
+                                       .build()));
+    }
+
+    /**
+     * The Google API client configures Apache HttpClient through the old {@code HttpParams}
+     * API, which clients built with {@link HttpClients} refuse. This wrapper accepts those
+     * client-wide parameters and forwards every request; per-request parameters, like timeouts,
+     * are still honoured by the wrapped client.
+     */
+    @SuppressWarnings("deprecation")
+    private static class LegacyParamsClient
+        extends CloseableHttpClient {
+        private final CloseableHttpClient               client;
+        private final org.apache.http.params.HttpParams params = new org.apache.http.params.BasicHttpParams();
+
+        public LegacyParamsClient(CloseableHttpClient client) {
+            this.client = client;
+        }
+
+        @Override protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+            throws IOException {
+            return client.execute(target, request, context);
+        }
+
+        @Override public org.apache.http.params.HttpParams getParams() {
+            return params;
+        }
+
+        @Override public org.apache.http.conn.ClientConnectionManager getConnectionManager() {
+            return client.getConnectionManager();
+        }
+
+        @Override public void close()
+            throws IOException {
+            client.close();
+        }
+    }
+}
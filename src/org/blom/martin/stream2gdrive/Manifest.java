@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.util.*;
+import com.google.api.client.http.*;
+import com.google.api.services.drive.Drive;
+
+/**
+ * The small object that stands in for an upload made of several Drive objects. It lists the
+ * parts of the stream, in order, with their sizes and hashes, along with the size and MD5
+ * checksum of the whole stream.
+ *
+ * The format is tab-separated text, one record per line. The first line names the kind of
+ * manifest, which is its MIME subtype without the {@code x-} prefix:
+ *
+ * <pre>
+ * &lt;kind&gt;    1
+ * size      &lt;bytes&gt;
+ * md5       &lt;hex&gt;
+ * &lt;part&gt;    &lt;id&gt;  &lt;bytes&gt;  &lt;hash&gt;
+ * </pre>
+ *
+ * Subclasses name the part records and may add records of their own.
+ */
+abstract class Manifest<P extends Manifest.Part> {
+    private static final String MIME_PREFIX = "application/x-";
+    private static final int    VERSION     = 1;
+
+    /** One object holding a part of the stream. */
+    public static class Part {
+        public final String id;
+        public final long   size;
+
+        protected Part(String id, long size) {
+            this.id   = id;
+            this.size = size;
+        }
+
+        public GenericUrl getDownloadUrl(Drive client) {
+            return new GenericUrl(client.getRootUrl() + client.getServicePath() + "files/" + id + "?alt=media");
+        }
+    }
+
+    private final String  mimeType;
+    private final String  part;
+    private final String  kind;
+    private final List<P> parts = new ArrayList<P>();
+
+    private long   size;
+    private String md5;
+
+    /**
+     * @param mimeType  the MIME type of the manifest object
+     * @param part      the name of the part records
+     * @param kind      what the manifest stands in for, for error messages
+     */
+    protected Manifest(String mimeType, String part, String kind, long size, String md5, List<P> parts) {
+        this.mimeType = mimeType;
+        this.part     = part;
+        this.kind     = kind;
+        this.size     = size;
+        this.md5      = md5;
+        this.parts.addAll(parts);
+    }
+
+    protected static boolean isManifest(com.google.api.services.drive.model.File meta, String mimeType) {
+        return mimeType.equals(meta.getMimeType());
+    }
+
+    /** Downloads the manifest stored in {@code meta} and parses it into the empty {@code manifest}. */
+    protected static <M extends Manifest<?>> M load(Drive client, com.google.api.services.drive.model.File meta, M manifest)
+        throws IOException {
+        HttpResponse response = client.getRequestFactory().buildGetRequest(new GenericUrl(meta.getDownloadUrl())).execute();
+
+        try {
+            ((Manifest<?>) manifest).parse(new BufferedReader(new InputStreamReader(response.getContent(), "UTF-8")), meta.getTitle());
+            return manifest;
+        }
+        finally {
+            response.disconnect();
+        }
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getMd5() {
+        return md5;
+    }
+
+    protected List<P> getParts() {
+        return parts;
+    }
+
+    public byte[] toBytes()
+        throws IOException {
+        StringBuilder sb = new StringBuilder(parts.size() * 120);
+
+        sb.append(mimeType.substring(MIME_PREFIX.length())).append('\t').append(VERSION).append('\n');
+        sb.append("size\t").append(size).append('\n');
+        sb.append("md5\t").append(md5).append('\n');
+
+        writeRecords(sb);
+
+        for (P p : parts) {
+            sb.append(part).append('\t').append(p.id).append('\t').append(p.size).append('\t').append(hashOf(p)).append('\n');
+        }
+
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    /** Creates a part from its record. */
+    protected abstract P newPart(String id, long size, String hash);
+
+    /** Returns the hash stored in the record of {@code part}. */
+    protected abstract String hashOf(P part);
+
+    /** Appends the records that only this kind of manifest has. */
+    protected void writeRecords(StringBuilder sb) {
+    }
+
+    /** Reads a record that only this kind of manifest has, and returns false for unknown ones. */
+    protected boolean readRecord(String[] fields) {
+        return false;
+    }
+
+    private void parse(BufferedReader reader, String name)
+        throws IOException {
+        String line = reader.readLine();
+
+        if (line == null || !line.equals(mimeType.substring(MIME_PREFIX.length()) + '\t' + VERSION)) {
+            throw new IOException(String.format("'%s' is not a %s manifest this version can read", name, kind));
+        }
+
+        long total = 0;
+
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t");
+
+            if (fields[0].equals("size") && fields.length == 2) {
+                size = Long.parseLong(fields[1]);
+            }
+            else if (fields[0].equals("md5") && fields.length == 2) {
+                md5 = fields[1];
+            }
+            else if (fields[0].equals(part) && fields.length == 4) {
+                P p = newPart(fields[1], Long.parseLong(fields[2]), fields[3]);
+
+                parts.add(p);
+                total += p.size;
+            }
+            else if (line.length() > 0 && !readRecord(fields)) {
+                throw new IOException(String.format("Invalid line in manifest '%s': %s", name, line));
+            }
+        }
+
+        if (total != size || md5 == null) {
+            throw new IOException(String.format("Manifest '%s' is incomplete", name));
+        }
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.api.client.http.*;
+
+/**
+ * Downloads a file of known size by splitting it into chunk-sized byte ranges and fetching them
+ * over several connections at once.
+ *
+ * Ranges are handed out in order, so when writing to a stream only a bounded window of chunks
+ * ever needs to be buffered while waiting for the one at the head to arrive.
+ *
+ * The source may also be a list of segments (the objects of a striped upload), which are
+ * fetched concurrently and joined, in order, into one file or stream.
+ */
+class ParallelDownloader {
+    private static final int SC_PARTIAL_CONTENT = 206;
+
+    private final HttpRequestFactory factory;
+    private final int parallel;
+    private final int chunkSize;
+
+    private boolean       progress;
+    private AsyncDigest   digest;
+    private TransferStats stats;
+    private long    downloaded;
+    private long    startTime;
+    private long    startByte;
+
+    /** Reports how long each range body took to arrive. */
+    public ParallelDownloader setStats(TransferStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    /** One object of a multi-object download. */
+    public static class Segment {
+        public final GenericUrl url;
+        public final long       size;
+
+        public Segment(GenericUrl url, long size) {
+            this.url  = url;
+            this.size = size;
+        }
+    }
+
+    public ParallelDownloader(HttpRequestFactory factory, int parallel, int chunkSize) {
+        this.factory   = factory;
+        this.parallel  = parallel;
+        this.chunkSize = chunkSize;
+    }
+
+    public ParallelDownloader setProgress(boolean progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /** Feeds the downloaded bytes, in order, to {@code digest}. */
+    public ParallelDownloader setDigest(AsyncDigest digest) {
+        this.digest = digest;
+        return this;
+    }
+
+    public void download(GenericUrl url, long size, File file)
+        throws IOException {
+        download(Collections.singletonList(new Segment(url, size)), file);
+    }
+
+    public void download(GenericUrl url, long size, OutputStream os)
+        throws IOException {
+        download(Collections.singletonList(new Segment(url, size)), os);
+    }
+
+    public void download(List<Segment> segments, File file)
+        throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+            raf.setLength(totalSize(segments));
+            run(segments, new FileSink(raf.getChannel(), digest));
+
+            if (digest != null) {
+                // Let the digest thread catch up before the channel it reads from is closed
+                digest.finish();
+            }
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    public void download(List<Segment> segments, OutputStream os)
+        throws IOException {
+        run(segments, new OrderedSink(digest != null ? digest.wrap(os) : os, parallel * 2));
+        os.flush();
+    }
+
+    private void run(final List<Segment> segments, final ChunkSink sink)
+        throws IOException {
+        // Chunks never span two segments; firstChunk[i] and firstByte[i] locate segment i
+        final long[]     firstChunk = new long[segments.size() + 1];
+        final long[]     firstByte  = new long[segments.size() + 1];
+        final AtomicLong next       = new AtomicLong();
+
+        for (int i = 0; i < segments.size(); ++i) {
+            firstChunk[i + 1] = firstChunk[i] + (segments.get(i).size + chunkSize - 1) / chunkSize;
+            firstByte[i + 1]  = firstByte[i] + segments.get(i).size;
+        }
+
+        final long chunks = firstChunk[segments.size()];
+        final long size   = firstByte[segments.size()];
+
+        ExecutorService         pool    = Executors.newFixedThreadPool(parallel);
+        CompletionService<Void> workers = new ExecutorCompletionService<Void>(pool);
+
+        startTime = System.currentTimeMillis();
+
+        for (int i = 0; i < parallel; ++i) {
+            workers.submit(new Callable<Void>() {
+                @Override public Void call()
+                    throws IOException, InterruptedException {
+                    byte[] buffer = new byte[chunkSize];
+                    long   chunk;
+
+                    while (!Thread.currentThread().isInterrupted() &&
+                           (chunk = next.getAndIncrement()) < chunks) {
+                        int     index   = segmentOf(firstChunk, chunk);
+                        Segment segment = segments.get(index);
+                        long    first   = (chunk - firstChunk[index]) * chunkSize;
+                        int     length  = (int) Math.min(chunkSize, segment.size - first);
+
+                        sink.acquire(chunk);
+                        fetch(segment.url, first, buffer, length);
+                        buffer = sink.write(chunk, firstByte[index] + first, buffer, length);
+                        progressChanged(length, size);
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        pool.shutdown();
+
+        try {
+            // Collect workers as they finish: when one fails, the others may be blocked in the
+            // ordered sink waiting for its chunk, so they must be interrupted, not waited for
+            for (int i = 0; i < parallel; ++i) {
+                workers.take().get();
+            }
+        }
+        catch (InterruptedException ex) {
+            throw new InterruptedIOException("Download interrupted");
+        }
+        catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            else if (ex.getCause() instanceof InterruptedException) {
+                throw new InterruptedIOException("Download interrupted");
+            }
+            else if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            else {
+                throw new IOException(ex.getCause());
+            }
+        }
+        finally {
+            // Workers blocked on a socket ignore the interrupt; they must not write anything
+            // after the download has returned
+            sink.close();
+            pool.shutdownNow();
+        }
+
+        if (progress) {
+            System.err.println(String.format("Done! %d bytes downloaded.", downloaded));
+        }
+    }
+
+    private static int segmentOf(long[] firstChunk, long chunk) {
+        int index = Arrays.binarySearch(firstChunk, chunk);
+
+        if (index < 0) {
+            return -index - 2;
+        }
+
+        // Skip empty segments, which share their first chunk with the next one
+        while (firstChunk[index + 1] == chunk) {
+            ++index;
+        }
+
+        return index;
+    }
+
+    private static long totalSize(List<Segment> segments) {
+        long size = 0;
+
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+
+        return size;
+    }
+
+    private void fetch(GenericUrl url, long first, byte[] buffer, int length)
+        throws IOException {
+        HttpRequest request  = factory.buildGetRequest(url);
+        int         received = 0;
+
+        while (true) {
+            request.getHeaders().setRange(String.format("bytes=%d-%d", first + received, first + length - 1));
+
+            HttpResponse response = request.execute();
+
+            try {
+                if (response.getStatusCode() != SC_PARTIAL_CONTENT && first + received != 0) {
+                    throw new IOException("Server ignored the requested byte range");
+                }
+
+                InputStream is = response.getContent();
+                int         n;
+
+                while (received < length && (n = is.read(buffer, received, length - received)) != -1) {
+                    received += n;
+                }
+
+                if (received != length) {
+                    throw new EOFException(String.format("Range at offset %d ended after %d of %d bytes",
+                                                         first, received, length));
+                }
+
+                if (stats != null) {
+                    stats.bodyReceived();
+                }
+
+                response.ignore();
+                return;
+            }
+            catch (IOException ex) {
+                response.disconnect();
+
+                // Let the request's own back-off policy (--auto-retry) decide whether to try again
+                HttpIOExceptionHandler handler = request.getIOExceptionHandler();
+
+                if (handler == null || !handler.handleIOException(request, true)) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    private synchronized void progressChanged(int length, long size) {
+        downloaded += length;
+
+        if (progress && downloaded < size) {
+            long   now = System.currentTimeMillis();
+            double mib = (downloaded - startByte) / (1.0 * 1024 * 1024);
+            double sec = (now - startTime) / 1000.0;
+
+            System.err.println(String.format("Downloaded %d MiB (%d %%). Current speed is %.1f MiB/s.",
+                                             downloaded / 1024 / 1024,
+                                             (int) (downloaded * 100 / size),
+                                             mib / sec));
+
+            startByte = downloaded;
+            startTime = now;
+        }
+    }
+
+    private interface ChunkSink {
+        /** Blocks until the sink is ready to accept the specified chunk. */
+        void acquire(long chunk)
+            throws InterruptedException;
+
+        /** Stores a chunk and returns a buffer the caller may use for the next one. */
+        byte[] write(long chunk, long offset, byte[] data, int length)
+            throws IOException, InterruptedException;
+
+        /** Makes all later writes fail. */
+        void close();
+    }
+
+    private static class FileSink
+        implements ChunkSink {
+        private FileChannel         channel;
+        private AsyncDigest         digest;
+        private long                digested;
+        private Map<Long, Integer>  written = new HashMap<Long, Integer>();
+        private volatile boolean    closed;
+
+        public FileSink(FileChannel channel, AsyncDigest digest) {
+            this.channel = channel;
+            this.digest  = digest;
+        }
+
+        @Override public void acquire(long chunk) {
+        }
+
+        @Override public byte[] write(long chunk, long offset, byte[] data, int length)
+            throws IOException {
+            checkClosed(closed);
+
+            ByteBuffer bb = ByteBuffer.wrap(data, 0, length);
+
+            while (bb.hasRemaining()) {
+                channel.write(bb, offset + bb.position());
+            }
+
+            if (digest != null) {
+                digestWritten(offset, length);
+            }
+
+            return data;
+        }
+
+        /** Queues the file region that has now been written without gaps for digesting. */
+        private synchronized void digestWritten(long offset, int length)
+            throws IOException {
+            checkClosed(closed);
+
+            long start = digested;
+
+            written.put(offset, length);
+
+            while (written.containsKey(digested)) {
+                digested += written.remove(digested);
+            }
+
+            if (digested > start) {
+                digest.update(channel, start, digested - start);
+            }
+        }
+
+        @Override public synchronized void close() {
+            closed = true;
+        }
+    }
+
+    private static class OrderedSink
+        implements ChunkSink {
+        private OutputStream          os;
+        private int                   window;
+        private long                  next;
+        private Map<Long, byte[]>     pending = new HashMap<Long, byte[]>();
+        private Map<Long, Integer>    lengths = new HashMap<Long, Integer>();
+        private LinkedList<byte[]>    free    = new LinkedList<byte[]>();
+        private boolean               closed;
+
+        public OrderedSink(OutputStream os, int window) {
+            this.os     = os;
+            this.window = window;
+        }
+
+        @Override public synchronized void acquire(long chunk)
+            throws InterruptedException {
+            while (!closed && chunk >= next + window) {
+                wait();
+            }
+        }
+
+        @Override public synchronized byte[] write(long chunk, long offset, byte[] data, int length)
+            throws IOException {
+            checkClosed(closed);
+
+            if (chunk != next) {
+                pending.put(chunk, data);
+                lengths.put(chunk, length);
+
+                return free.isEmpty() ? new byte[data.length] : free.removeFirst();
+            }
+
+            os.write(data, 0, length);
+            ++next;
+
+            while (pending.containsKey(next)) {
+                byte[] buffered = pending.remove(next);
+
+                os.write(buffered, 0, lengths.remove(next));
+                free.add(buffered);
+                ++next;
+            }
+
+            notifyAll();
+            return data;
+        }
+
+        @Override public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    private static void checkClosed(boolean closed)
+        throws IOException {
+        if (closed) {
+            throw new IOException("Download has already ended");
+        }
+    }
+}
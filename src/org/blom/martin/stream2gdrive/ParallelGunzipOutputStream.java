@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import static org.blom.martin.stream2gdrive.ParallelGzipInputStream.*;
+
+/**
+ * An output stream that decompresses the gzip data written to it on several threads at once.
+ *
+ * Members written by {@link ParallelGzipInputStream} carry their own length, so they can be
+ * cut out of the stream without inflating them and decompressed independently. Up to two
+ * members per thread are in flight; the results are written to the underlying stream in order,
+ * on the writing thread. Any other gzip data is decompressed by a single background thread.
+ */
+class ParallelGunzipOutputStream
+    extends OutputStream {
+    private static final int MAX_BLOCK_SIZE = BLOCK_SIZE * 16;
+
+    private final OutputStream               out;
+    private final ExecutorService            pool;
+    private final int                        maxPending;
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+    private byte[] member     = new byte[HEADER_SIZE];
+    private int    used;
+    private int    memberSize = -1;
+
+    private PipedOutputStream    serial;
+    private Thread               serialWorker;
+    private volatile IOException serialError;
+
+    public ParallelGunzipOutputStream(OutputStream out, int threads) {
+        this.out        = out;
+        this.pool       = newPool(threads, "ParallelGunzipOutputStream");
+        this.maxPending = threads * 2;
+    }
+
+    @Override public void write(int b)
+        throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override public synchronized void write(byte[] b, int off, int len)
+        throws IOException {
+        while (len > 0 && serial == null) {
+            int count = Math.min(len, (memberSize < 0 ? HEADER_SIZE : memberSize) - used);
+
+            System.arraycopy(b, off, member, used, count);
+            used += count;
+            off  += count;
+            len  -= count;
+
+            if (memberSize < 0 && used == HEADER_SIZE) {
+                memberSize = memberSize(member);
+
+                if (memberSize < 0) {
+                    // Not written by us, so the member boundaries are unknown. Earlier members
+                    // must be out before the serial thread starts writing
+                    while (!pending.isEmpty()) {
+                        writeNext();
+                    }
+
+                    startSerial();
+                    serial.write(member, 0, used);
+                }
+                else {
+                    byte[] larger = new byte[memberSize];
+
+                    System.arraycopy(member, 0, larger, 0, used);
+                    member = larger;
+                }
+            }
+            else if (used == memberSize) {
+                submit(member);
+
+                member     = new byte[HEADER_SIZE];
+                used       = 0;
+                memberSize = -1;
+            }
+        }
+
+        if (len > 0) {
+            serial.write(b, off, len);
+        }
+    }
+
+    /**
+     * Waits for all data written so far to be decompressed and written to the underlying
+     * stream, without closing it.
+     */
+    public synchronized void finish()
+        throws IOException {
+        try {
+            if (serial != null) {
+                serial.close();
+
+                try {
+                    serialWorker.join();
+                }
+                catch (InterruptedException ex) {
+                    throw new InterruptedIOException("Decompression interrupted");
+                }
+
+                if (serialError != null) {
+                    throw serialError;
+                }
+            }
+            else if (used > 0) {
+                throw new EOFException("Unexpected end of compressed data");
+            }
+
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+
+            out.flush();
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Override public void close()
+        throws IOException {
+        try {
+            finish();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void submit(final byte[] data)
+        throws IOException {
+        if (pending.size() >= maxPending) {
+            writeNext();
+        }
+
+        pending.add(pool.submit(new Callable<byte[]>() {
+            @Override public byte[] call()
+                throws IOException {
+                return inflate(data);
+            }
+        }));
+    }
+
+    private void writeNext()
+        throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+        }
+        catch (InterruptedException ex) {
+            throw new InterruptedIOException("Decompression interrupted");
+        }
+        catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException
+                ? (IOException) ex.getCause()
+                : new IOException(ex.getCause());
+        }
+    }
+
+    private void startSerial()
+        throws IOException {
+        final PipedInputStream pipe = new PipedInputStream(BLOCK_SIZE);
+
+        serial       = new PipedOutputStream(pipe);
+        serialWorker = new Thread("ParallelGunzipOutputStream") {
+            @Override public void run() {
+                try {
+                    InputStream is     = new GZIPInputStream(pipe, BLOCK_SIZE / 16);
+                    byte[]      buffer = new byte[BLOCK_SIZE / 16];
+                    int         n;
+
+                    while ((n = is.read(buffer)) != -1) {
+                        out.write(buffer, 0, n);
+                    }
+                }
+                catch (IOException ex) {
+                    serialError = ex;
+
+                    try {
+                        pipe.close();
+                    }
+                    catch (IOException ignored) {}
+                }
+            }
+        };
+
+        serialWorker.setDaemon(true);
+        serialWorker.start();
+    }
+
+    /** Returns the member length recorded in a gzip header, or -1 if there is none. */
+    private static int memberSize(byte[] header)
+        throws IOException {
+        if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || header[2] != 8 || header[3] != 4 ||
+            getShort(header, 10) != 8 || header[12] != SUBFIELD_ID1 || header[13] != SUBFIELD_ID2 ||
+            getShort(header, 14) != 4) {
+            return -1;
+        }
+
+        int size = getInt(header, 16);
+
+        if (size < HEADER_SIZE + TRAILER_SIZE || size > MAX_BLOCK_SIZE) {
+            throw new IOException(String.format("Invalid compressed block size %d", size & 0xffffffffL));
+        }
+
+        return size;
+    }
+
+    private static byte[] inflate(byte[] member)
+        throws IOException {
+        int      end      = member.length - TRAILER_SIZE;
+        int      length   = getInt(member, end + 4);
+        Inflater inflater = new Inflater(true);
+
+        if (length < 0 || length > MAX_BLOCK_SIZE) {
+            throw new IOException(String.format("Invalid uncompressed block size %d", length & 0xffffffffL));
+        }
+
+        try {
+            byte[] data = new byte[length];
+            int    done = 0;
+
+            inflater.setInput(member, HEADER_SIZE, end - HEADER_SIZE);
+
+            while (!inflater.finished()) {
+                int n = inflater.inflate(data, done, data.length - done);
+
+                if (n == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary() || done == data.length)) {
+                    throw new IOException("Corrupt compressed block");
+                }
+
+                done += n;
+            }
+
+            CRC32 crc = new CRC32();
+
+            crc.update(data, 0, done);
+
+            if (done != length || (int) crc.getValue() != getInt(member, end)) {
+                throw new IOException("Corrupt compressed block");
+            }
+
+            return data;
+        }
+        catch (DataFormatException ex) {
+            throw new IOException("Corrupt compressed block", ex);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return getShort(b, off) | getShort(b, off + 2) << 16;
+    }
+
+    private static int getShort(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An input stream that gzip-compresses its source on several threads at once, like pigz.
+ *
+ * The source is cut into blocks of {@link #BLOCK_SIZE} bytes, which are compressed
+ * independently and returned in order, each as a separate gzip member. Any gzip decoder reads
+ * the result as one stream. Every member also records its own length in a header subfield, so
+ * {@link ParallelGunzipOutputStream} can find the member boundaries and decompress them in
+ * parallel as well.
+ *
+ * A background thread reads the source and keeps up to two blocks per thread in flight, so
+ * memory use is about {@code 4 * threads * BLOCK_SIZE} bytes.
+ */
+class ParallelGzipInputStream
+    extends InputStream {
+    public static final int BLOCK_SIZE = 1024 * 1024;
+
+    /** Header subfield holding the total length of the member, as in BGZF. */
+    static final byte SUBFIELD_ID1 = 'S';
+    static final byte SUBFIELD_ID2 = 'G';
+    static final int  HEADER_SIZE  = 20;
+    static final int  TRAILER_SIZE = 8;
+
+    private static final Future<byte[]> EOF = new FutureTask<byte[]>(new Callable<byte[]>() {
+            @Override public byte[] call() {
+                return null;
+            }
+        });
+
+    private final ExecutorService               pool;
+    private final BlockingQueue<Future<byte[]>> filled;
+    private final Thread                        producer;
+
+    private byte[]  current;
+    private int     position;
+    private boolean finished;
+
+    public ParallelGzipInputStream(final InputStream source, int threads) {
+        pool   = newPool(threads, "ParallelGzipInputStream");
+        filled = new ArrayBlockingQueue<Future<byte[]>>(threads * 2 + 1);
+
+        producer = new Thread("ParallelGzipInputStream") {
+            @Override public void run() {
+                try {
+                    try {
+                        long blocks = 0;
+
+                        while (true) {
+                            final byte[] block  = new byte[BLOCK_SIZE];
+                            final int    length = fill(source, block);
+
+                            // An empty source still becomes a valid, empty gzip stream
+                            if (length > 0 || blocks == 0) {
+                                filled.put(pool.submit(new Callable<byte[]>() {
+                                    @Override public byte[] call() {
+                                        return compress(block, length);
+                                    }
+                                }));
+                                ++blocks;
+                            }
+
+                            if (length < block.length) {
+                                filled.put(EOF);
+                                return;
+                            }
+                        }
+                    }
+                    catch (final IOException ex) {
+                        filled.put(pool.submit(new Callable<byte[]>() {
+                            @Override public byte[] call()
+                                throws IOException {
+                                throw ex;
+                            }
+                        }));
+                    }
+                }
+                catch (InterruptedException ignored) {}
+                catch (RejectedExecutionException ignored) {}
+            }
+        };
+
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    @Override public int read()
+        throws IOException {
+        byte[] b = new byte[1];
+
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override public int read(byte[] b, int off, int len)
+        throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!next()) {
+            return -1;
+        }
+
+        int count = Math.min(len, current.length - position);
+
+        System.arraycopy(current, position, b, off, count);
+        position += count;
+
+        return count;
+    }
+
+    @Override public int available() {
+        return current != null ? current.length - position : 0;
+    }
+
+    @Override public void close() {
+        producer.interrupt();
+        pool.shutdownNow();
+    }
+
+    private boolean next()
+        throws IOException {
+        while (!finished && (current == null || position == current.length)) {
+            try {
+                Future<byte[]> block = filled.take();
+
+                if (block == EOF) {
+                    finished = true;
+                    pool.shutdown();
+                }
+                else {
+                    current  = block.get();
+                    position = 0;
+                }
+            }
+            catch (InterruptedException ex) {
+                throw new InterruptedIOException("Compression interrupted");
+            }
+            catch (ExecutionException ex) {
+                close();
+                throw ex.getCause() instanceof IOException
+                    ? (IOException) ex.getCause()
+                    : new IOException(ex.getCause());
+            }
+        }
+
+        return current != null && position < current.length;
+    }
+
+    /** Returns {@code length} bytes of {@code data} as a single gzip member. */
+    static byte[] compress(byte[] data, int length) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        CRC32    crc      = new CRC32();
+
+        try {
+            // Deflate never expands incompressible data by more than a few bytes per 16 KiB block
+            byte[] member = new byte[HEADER_SIZE + length + length / 1000 + 64 + TRAILER_SIZE];
+            int    size   = HEADER_SIZE;
+
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+
+            while (!deflater.finished()) {
+                if (size == member.length - TRAILER_SIZE) {
+                    byte[] larger = new byte[member.length * 2];
+
+                    System.arraycopy(member, 0, larger, 0, size);
+                    member = larger;
+                }
+
+                size += deflater.deflate(member, size, member.length - TRAILER_SIZE - size);
+            }
+
+            crc.update(data, 0, length);
+            size = putInt(member, size, (int) crc.getValue());
+            size = putInt(member, size, length);
+
+            member[0]  = (byte) 0x1f;   // ID1
+            member[1]  = (byte) 0x8b;   // ID2
+            member[2]  = 8;             // CM = deflate
+            member[3]  = 4;             // FLG = FEXTRA
+            member[9]  = (byte) 0xff;   // OS = unknown
+            putShort(member, 10, 8);    // XLEN
+            member[12] = SUBFIELD_ID1;
+            member[13] = SUBFIELD_ID2;
+            putShort(member, 14, 4);    // SLEN
+            putInt(member, 16, size);
+
+            byte[] result = new byte[size];
+
+            System.arraycopy(member, 0, result, 0, size);
+            return result;
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    static ExecutorService newPool(int threads, final String name) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static int fill(InputStream is, byte[] buffer)
+        throws IOException {
+        int length = 0;
+        int n;
+
+        while (length < buffer.length && (n = is.read(buffer, length, buffer.length - length)) != -1) {
+            length += n;
+        }
+
+        return length;
+    }
+
+    private static int putInt(byte[] b, int off, int value) {
+        off = putShort(b, off, value);
+        return putShort(b, off, value >>> 16);
+    }
+
+    private static int putShort(byte[] b, int off, int value) {
+        b[off]     = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+        return off + 2;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * An input stream that reads its source from a background thread into a fixed pool of reusable
+ * buffers, so a slow producer and a slow consumer can make progress at the same time.
+ *
+ * Memory use never exceeds {@code buffers * bufferSize} bytes.
+ */
+class ReadAheadInputStream
+    extends InputStream {
+    private static final Block EOF = new Block(null, 0, null);
+
+    private final BlockingQueue<byte[]> free;
+    private final BlockingQueue<Block>  filled;
+    private final Thread                producer;
+
+    private Block current;
+    private int   position;
+
+    public ReadAheadInputStream(final InputStream source, int bufferSize, int buffers) {
+        free   = new ArrayBlockingQueue<byte[]>(buffers);
+        filled = new ArrayBlockingQueue<Block>(buffers + 1);
+
+        for (int i = 0; i < buffers; ++i) {
+            free.add(new byte[bufferSize]);
+        }
+
+        producer = new Thread("ReadAheadInputStream") {
+            @Override public void run() {
+                try {
+                    try {
+                        while (true) {
+                            byte[] buffer = free.take();
+                            int    length = fill(source, buffer);
+
+                            if (length > 0) {
+                                filled.put(new Block(buffer, length, null));
+                            }
+
+                            if (length < buffer.length) {
+                                filled.put(EOF);
+                                return;
+                            }
+                        }
+                    }
+                    catch (IOException ex) {
+                        filled.put(new Block(null, 0, ex));
+                    }
+                }
+                catch (InterruptedException ignored) {}
+            }
+        };
+
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    @Override public int read()
+        throws IOException {
+        byte[] b = new byte[1];
+
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override public int read(byte[] b, int off, int len)
+        throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!next()) {
+            return -1;
+        }
+
+        int count = Math.min(len, current.length - position);
+
+        System.arraycopy(current.data, position, b, off, count);
+        position += count;
+
+        return count;
+    }
+
+    @Override public int available() {
+        return current != null && current.data != null ? current.length - position : 0;
+    }
+
+    @Override public void close() {
+        producer.interrupt();
+    }
+
+    private boolean next()
+        throws IOException {
+        if (current != null && current.data != null && position < current.length) {
+            return true;
+        }
+
+        if (current == EOF) {
+            return false;
+        }
+        else if (current != null && current.error != null) {
+            throw current.error;
+        }
+
+        if (current != null) {
+            free.add(current.data);
+        }
+
+        try {
+            current  = filled.take();
+            position = 0;
+        }
+        catch (InterruptedException ex) {
+            current = null;
+            throw new InterruptedIOException("Read-ahead interrupted");
+        }
+
+        if (current.error != null) {
+            throw current.error;
+        }
+
+        return current != EOF;
+    }
+
+    private static int fill(InputStream is, byte[] buffer)
+        throws IOException {
+        int length = 0;
+        int n;
+
+        while (length < buffer.length && (n = is.read(buffer, length, buffer.length - length)) != -1) {
+            length += n;
+        }
+
+        return length;
+    }
+
+    private static class Block {
+        final byte[]      data;
+        final int         length;
+        final IOException error;
+
+        Block(byte[] data, int length, IOException error) {
+            this.data   = data;
+            this.length = length;
+            this.error  = error;
+        }
+    }
+}
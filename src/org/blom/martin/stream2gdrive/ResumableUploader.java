@@ -0,0 +1,591 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import com.google.api.client.http.*;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.services.drive.Drive;
+
+/**
+ * Uploads a stream or a local file through a Drive resumable upload session, one chunk at a time.
+ *
+ * Unlike {@code MediaHttpUploader}, the chunk in flight is kept (in memory or in a spill file)
+ * until the server has acknowledged it. When a chunk fails, the session is asked how many bytes
+ * it has committed and the remainder of the chunk is sent again. Whether, and when, to try again
+ * is decided by the back-off policy; without one, the first error is fatal.
+ *
+ * The size of each chunk is asked for just before it is read, so an adaptive {@link ChunkSizer}
+ * can follow the throughput and error rate of the link.
+ */
+class ResumableUploader {
+    private static final int SC_RESUME_INCOMPLETE  = 308;
+    private static final int SC_GONE               = 410;
+    private static final int SC_TOO_MANY_REQUESTS  = 429;
+
+    private final Drive      client;
+    private final ChunkSizer chunkSizer;
+
+    private ExponentialBackOff.Builder backoffBuilder;
+    private File                       spillDirectory;
+    private boolean                    progress;
+    private AsyncDigest                digest;
+    private TransferStats              stats;
+    private String                     fileId;
+
+    private long startTime;
+    private long startByte;
+    private long backedOff;
+
+    public ResumableUploader(Drive client, ChunkSizer chunkSizer) {
+        this.client     = client;
+        this.chunkSizer = chunkSizer;
+    }
+
+    public ResumableUploader setBackOff(ExponentialBackOff.Builder backoffBuilder) {
+        this.backoffBuilder = backoffBuilder;
+        return this;
+    }
+
+    public ResumableUploader setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+        return this;
+    }
+
+    public ResumableUploader setProgress(boolean progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /** Feeds every byte of the source, in order, to {@code digest}. */
+    public ResumableUploader setDigest(AsyncDigest digest) {
+        this.digest = digest;
+        return this;
+    }
+
+    /** Replaces the content of this existing file, as a new revision, instead of creating a file. */
+    public ResumableUploader setFileId(String fileId) {
+        this.fileId = fileId;
+        return this;
+    }
+
+    /** Counts the retries made by this uploader, which bypass the requests' own handlers. */
+    public ResumableUploader setStats(TransferStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    public com.google.api.services.drive.model.File upload(com.google.api.services.drive.model.File meta, InputStream is)
+        throws IOException {
+        if (progress) {
+            System.err.println("Preparing to upload ...");
+        }
+
+        GenericUrl session = new GenericUrl(initiate(meta, -1));
+
+        if (progress) {
+            System.err.println("Starting upload ...");
+        }
+
+        return transfer(session, meta.getMimeType(), digest != null ? digest.wrap(is) : is, 0, -1, null);
+    }
+
+    /**
+     * Uploads a local file and records the session in {@code sessions} as it goes. If
+     * {@code resume} is set and a session for the same file is found, the server is asked how
+     * much it has already received and only the remaining bytes are sent.
+     */
+    public com.google.api.services.drive.model.File upload(com.google.api.services.drive.model.File meta, File local,
+                                                           SessionStore sessions, boolean resume)
+        throws IOException {
+        long   length = local.length();
+        String parent = meta.getParents() != null && !meta.getParents().isEmpty() ? meta.getParents().get(0).getId() : "root";
+        String key    = "put\0" + local.getCanonicalPath() + '\0' + parent + '\0' + meta.getTitle() + '\0' +
+            (fileId != null ? fileId : "");
+
+        SessionStore.Session state   = resume ? sessions.find(key) : null;
+        GenericUrl           session = null;
+        long                 offset  = 0;
+
+        if (state != null && (state.getLong("size", -1) != length || state.getLong("modified", -1) != local.lastModified())) {
+            // The local file has changed since the session was started
+            state.delete();
+            state = null;
+        }
+
+        if (state != null) {
+            session = new GenericUrl(state.get("uri"));
+
+            try {
+                Progress p = put(session, new EmptyContent(), String.format("bytes */%d", length));
+
+                if (p.file != null) {
+                    state.delete();
+
+                    if (digest != null) {
+                        digestFile(local);
+                    }
+
+                    return p.file;
+                }
+
+                offset = p.committed;
+
+                if (progress) {
+                    System.err.println(String.format("Resuming upload at %d of %d MiB ...",
+                                                     offset / 1024 / 1024, length / 1024 / 1024));
+                }
+            }
+            catch (HttpResponseException ex) {
+                if (ex.getStatusCode() != HttpStatusCodes.STATUS_CODE_NOT_FOUND && ex.getStatusCode() != SC_GONE) {
+                    throw ex;
+                }
+
+                if (progress) {
+                    System.err.println("Upload session has expired; starting over.");
+                }
+
+                state.delete();
+                session = null;
+            }
+        }
+
+        if (session == null) {
+            if (progress) {
+                System.err.println("Preparing to upload ...");
+            }
+
+            String uri = initiate(meta, length);
+
+            session = new GenericUrl(uri);
+            state   = sessions.create(key)
+                .set("uri", uri)
+                .set("path", local.getCanonicalPath())
+                .setLong("size", length)
+                .setLong("modified", local.lastModified())
+                .setLong("offset", 0);
+            state.save();
+
+            if (progress) {
+                System.err.println("Starting upload ...");
+            }
+        }
+
+        InputStream is = new FileInputStream(local);
+
+        try {
+            long skipped = 0;
+
+            if (digest != null) {
+                // Skipping reads through the digest, so the part that was sent earlier is hashed too
+                is = digest.wrap(is);
+            }
+
+            while (skipped < offset) {
+                long n = is.skip(offset - skipped);
+
+                if (n <= 0) {
+                    throw new EOFException(String.format("Local file '%s' is shorter than the uploaded part", local));
+                }
+
+                skipped += n;
+            }
+
+            com.google.api.services.drive.model.File result = transfer(session, meta.getMimeType(), is, offset, length, state);
+
+            state.delete();
+            return result;
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    private void digestFile(File local)
+        throws IOException {
+        FileInputStream fis = new FileInputStream(local);
+
+        try {
+            digest.update(fis.getChannel(), 0, local.length());
+            digest.finish();
+        }
+        finally {
+            fis.close();
+        }
+    }
+
+    private com.google.api.services.drive.model.File transfer(GenericUrl session, String mime, InputStream is,
+                                                              long offset, long length, SessionStore.Session state)
+        throws IOException {
+        PushbackInputStream pis   = new PushbackInputStream(is, 1);
+        Chunk               chunk = spillDirectory != null ? new SpillChunk(spillDirectory) : new MemoryChunk();
+
+        startTime = System.currentTimeMillis();
+        startByte = offset;
+
+        try {
+            while (true) {
+                int count = chunk.fill(pis, chunkSizer.size());
+                int peek  = pis.read();
+
+                if (peek != -1) {
+                    pis.unread(peek);
+                }
+
+                Long total = peek == -1 ? Long.valueOf(offset + count) : length >= 0 ? Long.valueOf(length) : null;
+                long started = System.currentTimeMillis();
+
+                backedOff = 0;
+
+                com.google.api.services.drive.model.File result = send(session, mime, chunk, offset, count, total);
+
+                // Time spent waiting to retry says nothing about the link; failed() has already been told
+                chunkSizer.completed(count, System.currentTimeMillis() - started - backedOff);
+                offset += count;
+
+                if (result != null) {
+                    if (progress) {
+                        System.err.println(String.format("Done! %d bytes uploaded.", offset));
+                    }
+
+                    return result;
+                }
+                else if (peek == -1) {
+                    throw new IOException("Upload session did not complete after the last chunk");
+                }
+
+                if (state != null) {
+                    state.setLong("offset", offset).save();
+                }
+
+                progressChanged(offset, length);
+            }
+        }
+        finally {
+            chunk.close();
+        }
+    }
+
+    private String initiate(com.google.api.services.drive.model.File meta, long length)
+        throws IOException {
+        GenericUrl url = new GenericUrl(client.getRootUrl() + "upload/" + client.getServicePath() + "files" +
+                                        (fileId != null ? "/" + fileId : ""));
+        url.set("uploadType", "resumable");
+
+        JsonHttpContent content = new JsonHttpContent(client.getJsonFactory(), meta);
+        HttpRequest     request = fileId == null
+            ? client.getRequestFactory().buildPostRequest(url, content)
+            : client.getRequestFactory().buildPutRequest(url, content);
+        request.getHeaders().set("X-Upload-Content-Type", meta.getMimeType());
+
+        if (length >= 0) {
+            request.getHeaders().set("X-Upload-Content-Length", length);
+        }
+
+        HttpResponse response = request.execute();
+
+        try {
+            String location = response.getHeaders().getLocation();
+
+            if (location == null) {
+                throw new IOException("Server did not return an upload session URI");
+            }
+
+            return location;
+        }
+        finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Sends one chunk, starting at absolute byte {@code offset}, and returns the resulting file
+     * when the server reports that the upload is complete.
+     */
+    private com.google.api.services.drive.model.File send(GenericUrl session, String mime, Chunk chunk,
+                                                          long offset, int length, Long total)
+        throws IOException {
+        BackOff backoff      = backoffBuilder != null ? backoffBuilder.build() : BackOff.STOP_BACKOFF;
+        int     sent         = 0;
+        boolean reauthorized = false;
+
+        while (true) {
+            try {
+                String range = length - sent == 0
+                    ? String.format("bytes */%s", total != null ? total : "*")
+                    : String.format("bytes %d-%d/%s", offset + sent, offset + length - 1, total != null ? total : "*");
+
+                Progress p = put(session, chunk.content(mime, sent, length - sent), range);
+
+                if (p.file != null) {
+                    return p.file;
+                }
+                else if (p.committed >= offset + length) {
+                    return null;
+                }
+
+                // The server kept only part of the chunk; send the rest right away
+                sent = checkCommitted(p.committed, offset);
+            }
+            catch (IOException ex) {
+                if (ex instanceof HttpResponseException &&
+                    ((HttpResponseException) ex).getStatusCode() == HttpStatusCodes.STATUS_CODE_UNAUTHORIZED && !reauthorized) {
+                    // The credential has refreshed the token; a streamed chunk cannot be resent by the request itself
+                    reauthorized = true;
+                    continue;
+                }
+                else if (ex instanceof HttpResponseException && !isRetryable(((HttpResponseException) ex).getStatusCode())) {
+                    throw ex;
+                }
+
+                chunkSizer.failed();
+
+                long millis = backoff.nextBackOffMillis();
+
+                if (stats != null && !(ex instanceof HttpResponseException)) {
+                    stats.error("PUT", session);
+                }
+
+                if (millis == BackOff.STOP) {
+                    throw ex;
+                }
+                else if (stats != null) {
+                    stats.retry("PUT", session);
+                }
+
+                if (progress) {
+                    System.err.println(String.format("Chunk at offset %d failed (%s). Retrying in %.1f s ...",
+                                                     offset + sent, ex.getMessage(), millis / 1000.0));
+                }
+
+                try {
+                    Thread.sleep(millis);
+                    backedOff += millis;
+                }
+                catch (InterruptedException ie) {
+                    throw new InterruptedIOException("Upload interrupted");
+                }
+
+                try {
+                    Progress p = put(session, new EmptyContent(), String.format("bytes */%s", total != null ? total : "*"));
+
+                    if (p.file != null) {
+                        return p.file;
+                    }
+
+                    sent = checkCommitted(p.committed, offset);
+
+                    if (sent >= length) {
+                        return null;
+                    }
+                }
+                catch (IOException ignored) {
+                    // Still failing; the next attempt will fail too and consume another back-off period
+                }
+            }
+        }
+    }
+
+    private Progress put(GenericUrl session, HttpContent content, String range)
+        throws IOException {
+        HttpRequest request = client.getRequestFactory().buildPutRequest(session, content);
+
+        final HttpUnsuccessfulResponseHandler handler = request.getUnsuccessfulResponseHandler();
+
+        // Retries are handled in send(), which knows how to resume from the committed offset. Only
+        // an expired access token is left to the original handler, so the credential can refresh it
+        request.setIOExceptionHandler(null);
+        request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+            @Override public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry)
+                throws IOException {
+                return response.getStatusCode() == HttpStatusCodes.STATUS_CODE_UNAUTHORIZED &&
+                    handler != null && handler.handleResponse(request, response, supportsRetry);
+            }
+        });
+        request.setThrowExceptionOnExecuteError(false);
+        request.setFollowRedirects(false);
+        request.setParser(client.getObjectParser());
+        request.getHeaders().setContentRange(range);
+
+        HttpResponse response = request.execute();
+
+        try {
+            if (response.isSuccessStatusCode()) {
+                return new Progress(-1, response.parseAs(com.google.api.services.drive.model.File.class));
+            }
+            else if (response.getStatusCode() == SC_RESUME_INCOMPLETE) {
+                String committed = response.getHeaders().getRange();
+
+                return new Progress(committed == null ? 0 : Long.parseLong(committed.substring(committed.indexOf('-') + 1)) + 1, null);
+            }
+            else {
+                throw new HttpResponseException(response);
+            }
+        }
+        finally {
+            response.disconnect();
+        }
+    }
+
+    private static int checkCommitted(long committed, long offset)
+        throws IOException {
+        if (committed < offset) {
+            throw new IOException(String.format("Server committed only %d bytes, but %d bytes have already been discarded",
+                                                committed, offset));
+        }
+
+        return (int) (committed - offset);
+    }
+
+    private static boolean isRetryable(int statusCode) {
+        return statusCode / 100 == 5 || statusCode == SC_TOO_MANY_REQUESTS;
+    }
+
+    private void progressChanged(long uploaded, long length) {
+        if (progress) {
+            long   now = System.currentTimeMillis();
+            double mib = (uploaded - startByte) / (1.0 * 1024 * 1024);
+            double sec = (now - startTime) / 1000.0;
+
+            if (length > 0) {
+                System.err.println(String.format("Uploaded %d of %d MiB (%d %%). Current speed is %.1f MiB/s.",
+                                                 uploaded / 1024 / 1024, length / 1024 / 1024,
+                                                 (int) (uploaded * 100 / length), mib / sec));
+            }
+            else {
+                System.err.println(String.format("Uploaded %d MiB. Current speed is %.1f MiB/s.",
+                                                 uploaded / 1024 / 1024, mib / sec));
+            }
+
+            startByte = uploaded;
+            startTime = now;
+        }
+    }
+
+    private static class Progress {
+        final long                                     committed;
+        final com.google.api.services.drive.model.File file;
+
+        Progress(long committed, com.google.api.services.drive.model.File file) {
+            this.committed = committed;
+            this.file      = file;
+        }
+    }
+
+    private interface Chunk {
+        /** Replaces the chunk with up to {@code size} bytes from the stream. */
+        int fill(InputStream is, int size)
+            throws IOException;
+
+        /** Returns the part of the chunk starting at {@code from} as request content. */
+        AbstractInputStreamContent content(String type, int from, int length)
+            throws IOException;
+
+        void close()
+            throws IOException;
+    }
+
+    private static class MemoryChunk
+        implements Chunk {
+        private byte[] data = new byte[0];
+
+        @Override public int fill(InputStream is, int size)
+            throws IOException {
+            int length = 0;
+            int n;
+
+            if (data.length < size) {
+                // Drop the old buffer first, so both are never held at the same time
+                data = null;
+                data = new byte[size];
+            }
+
+            while (length < size && (n = is.read(data, length, size - length)) != -1) {
+                length += n;
+            }
+
+            return length;
+        }
+
+        @Override public AbstractInputStreamContent content(String type, int from, int length) {
+            return new ByteArrayContent(type, data, from, length);
+        }
+
+        @Override public void close() {
+        }
+    }
+
+    private static class SpillChunk
+        implements Chunk {
+        private File             file;
+        private RandomAccessFile raf;
+        private byte[]           buffer = new byte[64 * 1024];
+
+        public SpillChunk(File directory)
+            throws IOException {
+            this.file = File.createTempFile("stream2gdrive-", ".chunk", directory);
+            this.raf  = new RandomAccessFile(file, "rw");
+
+            file.deleteOnExit();
+        }
+
+        @Override public int fill(InputStream is, int size)
+            throws IOException {
+            int length = 0;
+            int n;
+
+            raf.seek(0);
+
+            while (length < size && (n = is.read(buffer, 0, Math.min(buffer.length, size - length))) != -1) {
+                raf.write(buffer, 0, n);
+                length += n;
+            }
+
+            return length;
+        }
+
+        @Override public AbstractInputStreamContent content(String type, int from, int length)
+            throws IOException {
+            final ByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, from, length);
+
+            return new InputStreamContent(type, new InputStream() {
+                    @Override public int read() {
+                        return mapped.hasRemaining() ? mapped.get() & 0xff : -1;
+                    }
+
+                    @Override public int read(byte[] b, int off, int len) {
+                        if (!mapped.hasRemaining()) {
+                            return -1;
+                        }
+
+                        len = Math.min(len, mapped.remaining());
+                        mapped.get(b, off, len);
+                        return len;
+                    }
+                })
+                .setLength(length);
+        }
+
+        @Override public void close()
+            throws IOException {
+            raf.close();
+            file.delete();
+        }
+    }
+}
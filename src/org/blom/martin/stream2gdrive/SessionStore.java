@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Keeps track of interrupted transfers, one small properties file per session, so a
+ * {@code put} or {@code get} can be continued by a later process.
+ *
+ * Google Drive forgets upload sessions after about a week, so older state files are removed
+ * whenever the store is opened.
+ */
+class SessionStore {
+    private static final long MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    private final File directory;
+
+    public SessionStore(File directory)
+        throws IOException {
+        this.directory = directory;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Failed to create directory '%s'", directory));
+        }
+
+        purge();
+    }
+
+    /**
+     * Returns the saved session with the specified key, or null if there is none or if it has
+     * expired.
+     */
+    public Session find(String key)
+        throws IOException {
+        File state = stateFile(key);
+
+        if (!state.exists()) {
+            return null;
+        }
+
+        Session session = new Session(state);
+
+        if (System.currentTimeMillis() - session.getLong("created", 0) > MAX_AGE) {
+            session.delete();
+            return null;
+        }
+
+        return session;
+    }
+
+    /**
+     * Returns a new, unsaved session, replacing any existing one with the same key once saved.
+     */
+    public Session create(String key)
+        throws IOException {
+        Session session = new Session(stateFile(key), key);
+
+        session.setLong("created", System.currentTimeMillis());
+        return session;
+    }
+
+    private void purge() {
+        File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".session") &&
+                    System.currentTimeMillis() - file.lastModified() > MAX_AGE) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private File stateFile(String key)
+        throws IOException {
+        try {
+            StringBuilder sb = new StringBuilder();
+
+            for (byte b : MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"))) {
+                sb.append(String.format("%02x", b));
+            }
+
+            return new File(directory, sb + ".session");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    public static class Session {
+        private File       file;
+        private Properties props = new Properties();
+
+        private Session(File file)
+            throws IOException {
+            InputStream is = new FileInputStream(file);
+
+            try {
+                this.file = file;
+                props.load(is);
+            }
+            finally {
+                is.close();
+            }
+        }
+
+        private Session(File file, String key) {
+            this.file = file;
+
+            props.setProperty("key", key);
+        }
+
+        public String get(String name) {
+            return props.getProperty(name);
+        }
+
+        public long getLong(String name, long defaultValue) {
+            String value = props.getProperty(name);
+
+            return value != null ? Long.parseLong(value) : defaultValue;
+        }
+
+        public Session set(String name, String value) {
+            props.setProperty(name, value);
+            return this;
+        }
+
+        public Session setLong(String name, long value) {
+            props.setProperty(name, Long.toString(value));
+            return this;
+        }
+
+        public void delete() {
+            file.delete();
+        }
+
+        public void save()
+            throws IOException {
+            File         tmp = new File(file.getPath() + ".tmp");
+            OutputStream os  = new FileOutputStream(tmp);
+
+            try {
+                props.store(os, "Stream2GDrive transfer session");
+            }
+            finally {
+                os.close();
+            }
+
+            // Windows will not rename over an existing file
+            file.delete();
+
+            if (!tmp.renameTo(file)) {
+                throw new IOException(String.format("Failed to save transfer session to '%s'", file));
+            }
+        }
+    }
+}
@@ -15,14 +15,15 @@
 package org.blom.martin.stream2gdrive;
 
 import java.io.*;
+import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.regex.Pattern;
 import org.apache.commons.cli.*;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.extensions.java6.auth.oauth2.*;
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.*;
 import com.google.api.client.googleapis.extensions.java6.auth.oauth2.GooglePromptReceiver;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.googleapis.media.*;
 import com.google.api.client.http.*;
 import com.google.api.client.json.JsonFactory;
@@ -38,10 +39,42 @@ public class Stream2GDrive {
     private static final String APP_NAME    = "Stream2GDrive";
     private static final String APP_VERSION = "1.3";
 
-    private static final int EX_USAGE = 64;
-    private static final int EX_IOERR = 74;
+    private static final int EX_USAGE   = 64;
+    private static final int EX_DATAERR = 65;
+    private static final int EX_IOERR   = 74;
+
+    private static final int   AUTO_CHUNK_INITIAL = 8 * 1024 * 1024;
+    private static final int   STRIPED_CONNECTIONS = 4;
+    private static final int   DEFAULT_MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /** Options that configure the shared client, so a daemon only accepts them on startup. */
+    private static final String[] SETUP_OPTIONS = {
+        "transport", "max-connections", "socket-buffer", "auto-retry", "stats", "stats-file", "stats-interval",
+        "index", "no-index", "index-max-age", "oob"
+    };
+
+    private static DriveIndex    index;
+    private static TransferStats stats;
+    private static int           maxChunkSize = DEFAULT_MAX_CHUNK_SIZE;
+    private static boolean       autoChunkSize;
+    private static boolean       compress;
+    private static File          workingDir;
 
     public static void main(String[] args)
+        throws Exception {
+        int status = run(args, null, null);
+
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Runs one command line and returns its exit status. Unless a {@code session} is given, as
+     * a daemon does for every command it serves, the client is set up first. Relative local
+     * paths are resolved against {@code workingDir}, or the current directory if null.
+     */
+    static int run(String[] args, Session session, File workingDir)
         throws Exception {
         Options opt = new Options();
 
@@ -52,274 +85,1572 @@ public class Stream2GDrive {
         opt.addOption("p",  "parent",     true, "Operate inside this Google Drive folder instead of root.");
         opt.addOption("o",  "output",     true, "Override output/destination file name");
         opt.addOption("m",  "mime",       true, "Override guessed MIME type.");
-        opt.addOption("C",  "chunk-size", true, "Set transfer chunk size, in MiB. Default is 10.0 MiB.");
+        opt.addOption("C",  "chunk-size", true, "Set transfer chunk size, in MiB, or 'auto'. Default is 10.0 MiB.");
         opt.addOption("r",  "auto-retry", false,"Enable automatic retry with exponential backoff in case of error.");
+        opt.addOption("P",  "parallel",   true, "Download using this many concurrent connections. Default is 1.");
+        opt.addOption("R",  "recursive", false, "Transfer, list or trash whole folders.");
+        opt.addOption("j",  "jobs",       true, "Number of files, folders or batches to work on at the same time. Default is 4.");
+        opt.addOption(null, "read-ahead", true, "Number of chunk-sized buffers to read ahead from standard input. Default is 2.");
+        opt.addOption(null, "stripe-size", true, "Upload standard input as separate objects of this many MiB, --jobs at a time.");
+        opt.addOption(null, "dedup",      true, "Upload standard input as chunks, each stored once in this Google Drive folder.");
+        opt.addOption(null, "spill-dir",  true, "Keep the standard input chunk in flight in a file in this directory instead of in memory.");
+        opt.addOption(null, "resume",    false, "Resume an interrupted get or put of the same local file.");
+        opt.addOption("z",  "compress",  false, "Compress data sent by put, and decompress data received by get, on all cores.");
+        opt.addOption(null, "delete",    false, "Let sync move remote files to the trash when the local file is gone.");
+        opt.addOption(null, "older-than", true, "Only trash files that have not been modified for this many days.");
+        opt.addOption(null, "max-chunk-size", true, "Largest chunk --chunk-size auto may use, in MiB. Default is 64.");
+
+        opt.addOption(null, "index",     false, "Build the local index if there is none yet, by listing the whole Drive.");
+        opt.addOption(null, "no-index",  false, "Always look up names on the server instead of in the local index.");
+        opt.addOption(null, "index-max-age", true, "Refresh the local index when it is older than this, in seconds. Default is 60.");
+
+        opt.addOption(null, "stats",      true, "Write transfer statistics in this format ('json') when done.");
+        opt.addOption(null, "stats-file", true, "Write statistics to this file instead of to standard error.");
+        opt.addOption(null, "stats-interval", true, "Also write statistics every this many seconds.");
+
+        opt.addOption(null, "transport",  true, "HTTP client to use: 'net' or 'apache'. Default is net.");
+        opt.addOption(null, "max-connections", true, "Keep at most this many connections per host. Default is 32.");
+        opt.addOption(null, "socket-buffer", true, "TCP send and receive buffer size, in KiB (apache only). Default is the system's.");
 
         opt.addOption(null, "oob",       false, "Provide OAuth authentication out-of-band.");
 
+        opt.addOption(null, "port",      true, "Serve commands on this loopback port in daemon mode. Default is any free port.");
+        opt.addOption(null, "connect",   false, "Run the command in the daemon instead of in this process.");
+
+        String[] line = args;
+
+        Stream2GDrive.workingDir = workingDir;
+
         try {
             CommandLine cmd = new GnuParser().parse(opt, args, false);
             args = cmd.getArgs();
 
-            if (cmd.hasOption("version")) {
-                String version = "?";
-                String date    = "?";
+            if (cmd.hasOption("version")) {
+                String version = "?";
+                String date    = "?";
+
+                try {
+                    Properties props = new Properties();
+                    props.load(resource("/build.properties"));
+
+                    version = props.getProperty("version", "?");
+                    date    = props.getProperty("date", "?");
+                }
+                catch (Exception ignored) {}
+
+                System.err.println(String.format("%s %s. Build %s (%s)",
+                                                 APP_NAME, APP_VERSION, version, date));
+                System.err.println();
+            }
+
+            if (cmd.hasOption("help")) {
+                throw new ParseException(null);
+            }
+
+            if (args.length < 1) {
+                if (cmd.hasOption("version")) {
+                    return 0;
+                }
+                else {
+                    throw new ParseException("<cmd> missing");
+                }
+            }
+
+            String command = args[0];
+
+            if (cmd.hasOption("port") && !command.equals("daemon")) {
+                throw new ParseException("--port can only be used with daemon");
+            }
+
+            if (session == null) {
+                if (cmd.hasOption("connect")) {
+                    List<String> forwarded = new ArrayList<String>(Arrays.asList(line));
+
+                    forwarded.remove("--connect");
+                    return Daemon.forward(daemonFile(), forwarded.toArray(new String[forwarded.size()]));
+                }
+
+                session = setup(cmd);
+
+                if (command.equals("daemon")) {
+                    if (args.length > 1) {
+                        throw new ParseException("Too many arguments");
+                    }
+
+                    // Only returns if the daemon fails to start
+                    new Daemon(session, daemonFile(), Integer.parseInt(cmd.getOptionValue("port", "0"))).serve();
+                    return 0;
+                }
+            }
+            else {
+                for (String name : SETUP_OPTIONS) {
+                    if (cmd.hasOption(name)) {
+                        throw new ParseException(String.format("--%s must be given when the daemon is started", name));
+                    }
+                }
+            }
+
+            Drive                      client         = session.client;
+            HttpTransport              ht             = session.transport;
+            ExponentialBackOff.Builder backoffBuilder = session.backoffBuilder;
+
+            // Until the index has been built with --index, names are looked up on the server
+            index = session.index != null && session.index.isUsable() ? session.index : null;
+
+            boolean verbose = cmd.hasOption("verbose");
+            String chunkOpt = cmd.getOptionValue("chunk-size", "10.0");
+            float chunkSize = chunkOpt.equals("auto") ? 0 : Float.parseFloat(chunkOpt);
+            int    parallel = Integer.parseInt(cmd.getOptionValue("parallel", "1"));
+            int   readAhead = Integer.parseInt(cmd.getOptionValue("read-ahead", "2"));
+            File   spillDir = cmd.hasOption("spill-dir") ? localFile(cmd.getOptionValue("spill-dir")) : null;
+            boolean  resume = cmd.hasOption("resume");
+            boolean    tree = cmd.hasOption("recursive");
+            int        jobs = Integer.parseInt(cmd.getOptionValue("jobs", "4"));
+            long  olderThan = (long) (Double.parseDouble(cmd.getOptionValue("older-than", "0")) * 24 * 3600 * 1000);
+
+            if (parallel < 1) {
+                throw new ParseException("--parallel must be at least 1");
+            }
+
+            if (jobs < 1) {
+                throw new ParseException("--jobs must be at least 1");
+            }
+
+            autoChunkSize = chunkOpt.equals("auto");
+
+            if (!autoChunkSize && !(chunkSize > 0)) {
+                throw new ParseException("--chunk-size must be positive or 'auto'");
+            }
+
+            maxChunkSize = cmd.hasOption("max-chunk-size")
+                ? calcChunkSize(Float.parseFloat(cmd.getOptionValue("max-chunk-size")))
+                : DEFAULT_MAX_CHUNK_SIZE;
+
+            if (cmd.hasOption("stripe-size") && (args.length != 2 || !args[1].equals("-") || !command.equals("put"))) {
+                throw new ParseException("--stripe-size can only be used with put -");
+            }
+
+            if (cmd.hasOption("dedup") && (args.length != 2 || !args[1].equals("-") || !command.equals("put"))) {
+                throw new ParseException("--dedup can only be used with put -");
+            }
+            else if (cmd.hasOption("dedup") && cmd.hasOption("stripe-size")) {
+                throw new ParseException("--dedup cannot be used with --stripe-size");
+            }
+            else if (cmd.hasOption("dedup") && cmd.hasOption("compress")) {
+                throw new ParseException("--dedup cannot be used with --compress");
+            }
+
+            if (readAhead < 0) {
+                throw new ParseException("--read-ahead must not be negative");
+            }
+
+            compress = cmd.hasOption("compress");
+
+            if (compress && resume) {
+                throw new ParseException("--compress cannot be used with --resume");
+            }
+
+            if (cmd.hasOption("delete") && !command.equals("sync")) {
+                throw new ParseException("--delete can only be used with sync");
+            }
+
+            if (cmd.hasOption("older-than") && !command.equals("trash")) {
+                throw new ParseException("--older-than can only be used with trash");
+            }
+            else if (olderThan < 0) {
+                throw new ParseException("--older-than must not be negative");
+            }
+
+            String root = null;
+
+            if (cmd.hasOption("parent")) {
+                root = findWorkingDirectory(client, cmd.getOptionValue("parent"));
+            }
+
+            if (command.equals("get")) {
+                if (args.length < 2) {
+                    throw new ParseException("<file> missing");
+                }
+                else if (args.length == 2 && !tree) {
+                    String file = args[1];
+
+                    download(client, ht, root, file, cmd.getOptionValue("output", file),
+                             verbose, chunkSize, parallel, resume);
+                }
+                else {
+                    checkBatch(cmd, args);
+                    downloadAll(client, ht, root, Arrays.asList(args).subList(1, args.length), tree, jobs,
+                                verbose, chunkSize, parallel, resume);
+                }
+            }
+            else if (command.equals("put")) {
+                if (args.length < 2) {
+                    throw new ParseException("<file> missing");
+                }
+                else if (cmd.hasOption("stripe-size")) {
+                    uploadStriped(client, root, cmd.getOptionValue("output", "-"),
+                                  cmd.getOptionValue("mime", "application/octet-stream"),
+                                  verbose, chunkSize, calcChunkSize(Float.parseFloat(cmd.getOptionValue("stripe-size"))),
+                                  jobs, readAhead, spillDir, backoffBuilder);
+                }
+                else if (cmd.hasOption("dedup")) {
+                    uploadDeduped(client, root, cmd.getOptionValue("output", "-"), cmd.getOptionValue("dedup"),
+                                  cmd.getOptionValue("mime", "application/octet-stream"),
+                                  verbose, chunkSize, jobs, readAhead, backoffBuilder);
+                }
+                else if (args.length == 2 && !tree) {
+                    String file = args[1];
+
+                    upload(client, file.equals("-") ? file : localFile(file).getPath(), root,
+                           cmd.getOptionValue("output", new File(file).getName()),
+                           cmd.getOptionValue("mime", new javax.activation.MimetypesFileTypeMap().getContentType(file)),
+                           verbose, chunkSize, readAhead, spillDir, backoffBuilder, resume);
+                }
+                else {
+                    checkBatch(cmd, args);
+                    uploadAll(client, root, Arrays.asList(args).subList(1, args.length), tree, jobs,
+                              cmd.getOptionValue("mime"), verbose, chunkSize, backoffBuilder, resume);
+                }
+            }
+            else if (command.equals("trash")) {
+                if (args.length < 2) {
+                    throw new ParseException("<file> missing");
+                }
+                else if (args.length == 2 && !tree && olderThan == 0 && !isGlob(args[1])) {
+                    trash(client, root, args[1]);
+                }
+                else {
+                    trashAll(client, root, Arrays.asList(args).subList(1, args.length), tree, olderThan, jobs);
+                }
+            }
+            else if (command.equals("sync")) {
+                if (args.length != 2) {
+                    throw new ParseException(args.length < 2 ? "<localdir> missing" : "Too many arguments");
+                }
+
+                sync(client, root, localFile(args[1]), cmd.hasOption("delete"), jobs,
+                     cmd.getOptionValue("mime"), verbose, chunkSize, backoffBuilder);
+            }
+            else if (command.equals("verify")) {
+                if (args.length != 2) {
+                    throw new ParseException(args.length < 2 ? "<localdir> missing" : "Too many arguments");
+                }
+
+                verify(client, root, localFile(args[1]), tree,
+                       cmd.hasOption("jobs") ? jobs : Runtime.getRuntime().availableProcessors(), verbose);
+            }
+            else if (command.equals("md5") || command.equals("list")) {
+                if (args.length > 1) {
+                    throw new ParseException("Too many arguments");
+                }
+
+                list(client, root, command.equals("md5"), tree, jobs);
+            }
+            else {
+                throw new ParseException("Invalid command: " + command);
+            }
+
+            if (index != null) {
+                index.save();
+            }
+        }
+        catch (ParseException ex) {
+            PrintWriter   pw = new PrintWriter(System.err);
+            HelpFormatter hf = new HelpFormatter();
+
+            hf.printHelp(pw, 80, "stream2gdrive [OPTIONS] <cmd> [<options>]",
+                         "  Commands: daemon, get <file>..., list, md5, put <file>..., sync <localdir>, trash <file>..., verify <localdir>.",
+                         opt, 2, 8,
+                         "Use '-' as <file> for standard input.");
+
+            if (ex.getMessage() != null && !ex.getMessage().isEmpty()) {
+                pw.println();
+                hf.printWrapped(pw, 80, String.format("Error: %s.", ex.getMessage()));
+            }
+
+            pw.flush();
+            return EX_USAGE;
+        }
+        catch (NumberFormatException ex) {
+            System.err.println("Invalid decimal number: " + ex.getMessage() + ".");
+            return EX_USAGE;
+        }
+        catch (ChecksumMismatchException ex) {
+            System.err.println("Checksum error: " + ex.getMessage() + ".");
+            return EX_DATAERR;
+        }
+        catch (IOException ex) {
+            System.err.println("I/O error: " + ex.getMessage() + ".");
+            return EX_IOERR;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Builds the transport, authorizes the user and creates the Drive client, the local index
+     * and the statistics collector; everything that can be shared by several commands.
+     */
+    private static Session setup(CommandLine cmd)
+        throws ParseException, GeneralSecurityException, IOException {
+        String    transport = cmd.getOptionValue("transport", HttpTransports.NET);
+        int     connections = Integer.parseInt(cmd.getOptionValue("max-connections", "32"));
+        int    socketBuffer = Integer.parseInt(cmd.getOptionValue("socket-buffer", "0")) * 1024;
+
+        if (!transport.equals(HttpTransports.NET) && !transport.equals(HttpTransports.APACHE)) {
+            // An HTTP/2 backend would need java.net.http, which is not available before Java 11
+            throw new ParseException("Unsupported --transport: " + transport);
+        }
+
+        if (connections < 1) {
+            throw new ParseException("--max-connections must be at least 1");
+        }
+
+        if (socketBuffer < 0) {
+            throw new ParseException("--socket-buffer must not be negative");
+        }
+
+        if (cmd.hasOption("socket-buffer") && !transport.equals(HttpTransports.APACHE)) {
+            throw new ParseException("--socket-buffer can only be used with --transport apache");
+        }
+
+        JsonFactory          jf = JacksonFactory.getDefaultInstance();
+        HttpTransport        ht = HttpTransports.create(transport, connections, socketBuffer);
+        GoogleClientSecrets gcs = GoogleClientSecrets.load(jf, resource("/client_secrets.json"));
+
+        Set<String> scopes = new HashSet<String>();
+        scopes.add(DriveScopes.DRIVE_FILE);
+        scopes.add(DriveScopes.DRIVE_METADATA_READONLY);
+
+        GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(ht, jf, gcs, scopes)
+            .setDataStoreFactory(new FileDataStoreFactory(appDataDir()))
+            .build();
+
+        VerificationCodeReceiver vcr = !cmd.hasOption("oob")
+            ? new LocalServerReceiver()
+            : new GooglePromptReceiver();
+
+        Credential creds = new AuthorizationCodeInstalledApp(flow, vcr)
+            .authorize("user");
+
+        List<HttpRequestInitializer> hrilist = new ArrayList<HttpRequestInitializer>();
+        hrilist.add( creds );
+
+        ExponentialBackOff.Builder backoffBuilder = null;
+
+        if (cmd.hasOption("auto-retry")) {
+            backoffBuilder = new ExponentialBackOff.Builder()
+                .setInitialIntervalMillis(6*1000) // 6 seconds initial retry period
+                .setMaxElapsedTimeMillis(45*60*1000) // 45 minutes maximum total wait time
+                .setMaxIntervalMillis(15*60*1000) // 15 minute maximum interval
+                .setMultiplier(1.85)
+                .setRandomizationFactor(0.5);
+            // Expected total waiting time before giving up = sum([6*1.85^i for i in range(10)])
+            // ~= 55 minutes
+            // Note that Google API's HttpRequest allows for up to 10 retry.
+            hrilist.add( new ExponentialBackOffHttpRequestInitializer(backoffBuilder) );
+        }
+        if (cmd.hasOption("stats")) {
+            if (!cmd.getOptionValue("stats").equals("json")) {
+                throw new ParseException("Unsupported --stats format: " + cmd.getOptionValue("stats"));
+            }
+
+            PrintStream out = cmd.hasOption("stats-file")
+                ? new PrintStream(new FileOutputStream(cmd.getOptionValue("stats-file"), true), true, "UTF-8")
+                : System.err;
+
+            stats = new TransferStats(jf);
+            stats.start(out, Long.parseLong(cmd.getOptionValue("stats-interval", "0")) * 1000);
+        }
+
+        HttpRequestInitializerStacker hristack = new HttpRequestInitializerStacker(hrilist, stats);
+
+        Drive client = new Drive.Builder(ht, jf, hristack)
+            .setApplicationName(APP_NAME + "/" + APP_VERSION)
+            .build();
+
+        DriveIndex driveIndex = null;
+
+        if (cmd.hasOption("index") && cmd.hasOption("no-index")) {
+            throw new ParseException("--index cannot be used with --no-index");
+        }
+        else if (!cmd.hasOption("no-index")) {
+            // Resolve names locally; the index is kept current through the changes feed
+            driveIndex = new DriveIndex(client, new File(appDataDir(), "index.tsv"),
+                                        Long.parseLong(cmd.getOptionValue("index-max-age", "60")) * 1000,
+                                        cmd.hasOption("index"), cmd.hasOption("verbose"));
+        }
+
+        return new Session(client, ht, backoffBuilder, driveIndex);
+    }
+
+    public static com.google.api.services.drive.model.File download(Drive client, HttpTransport ht, String root, String remote, String local,
+                                                                    boolean progress, float chunkSize, int parallel, boolean resume)
+        throws IOException {
+        com.google.api.services.drive.model.File meta = findFile(client, remote, root == null ? "root" : root);
+
+        download(client, ht, meta, local, progress, chunkSize, parallel, resume);
+        return meta;
+    }
+
+    public static void download(Drive client, HttpTransport ht, com.google.api.services.drive.model.File meta, String local,
+                                boolean progress, float chunkSize, int parallel, boolean resume)
+        throws IOException {
+        File file = local.equals("-") ? null : localFile(local);
+
+        if (file == null && resume) {
+            throw new IOException("Only downloads to local files can be resumed");
+        }
+        else if (file != null && file.exists() && !resume) {
+            throw new IOException(String.format("The local file '%s' already exists", file));
+        }
+
+        if (compress) {
+            // Members are decompressed in parallel, but have to be written out in order
+            OutputStream               os  = file == null ? System.out : new FileOutputStream(file);
+            ParallelGunzipOutputStream gos = new ParallelGunzipOutputStream(os, Runtime.getRuntime().availableProcessors());
+
+            try {
+                download(client, ht, meta, null, gos, progress, chunkSize, parallel, false);
+                gos.finish();
+            }
+            finally {
+                if (file != null) {
+                    os.close();
+                }
+            }
+        }
+        else {
+            download(client, ht, meta, file, System.out, progress, chunkSize, parallel, resume);
+        }
+    }
+
+    /** Downloads to {@code file}, or to {@code out} if {@code file} is null. */
+    private static void download(Drive client, HttpTransport ht, com.google.api.services.drive.model.File meta, File file,
+                                 OutputStream out, boolean progress, float chunkSize, int parallel, boolean resume)
+        throws IOException {
+        if (StripeManifest.isManifest(meta)) {
+            downloadStriped(client, meta, file, out, progress, chunkSize, parallel, resume);
+            return;
+        }
+        else if (DedupManifest.isManifest(meta)) {
+            downloadDeduped(client, meta, file, out, progress, chunkSize, parallel, resume);
+            return;
+        }
+
+        GenericUrl link = new GenericUrl(meta.getDownloadUrl());
+
+        // Checksum the bytes as they arrive instead of reading the file again afterwards
+        AsyncDigest digest = new AsyncDigest();
+
+        try {
+            if (parallel > 1 && meta.getFileSize() != null && !resume) {
+                ParallelDownloader pd = new ParallelDownloader(client.getRequestFactory(), parallel,
+                                                               // Ranges are claimed up front, so they keep the initial size
+                                                               chunkSizer(chunkSize, Integer.MAX_VALUE, progress).size())
+                    .setProgress(progress)
+                    .setDigest(digest)
+                    .setStats(stats);
+
+                if (file == null) {
+                    pd.download(link, meta.getFileSize(), out);
+                }
+                else {
+                    pd.download(link, meta.getFileSize(), file);
+                }
+
+                verifyChecksum(meta.getTitle(), meta.getMd5Checksum(), digest.finish(), progress);
+                return;
+            }
+
+            SessionStore.Session state  = null;
+            long                 offset = 0;
+
+            if (file != null) {
+                // Remember which remote file this is, so an interrupted download can be continued
+                SessionStore sessions = new SessionStore(new File(appDataDir(), "sessions"));
+                String       key      = "get\0" + file.getCanonicalPath();
+
+                if (file.exists()) {
+                    state = sessions.find(key);
+
+                    if (state == null ||
+                        !meta.getId().equals(state.get("id")) ||
+                        meta.getModifiedDate().getValue() != state.getLong("modified", -1)) {
+                        throw new IOException(String.format("Cannot resume '%s': the remote file has changed, or the download " +
+                                                            "was not started by a non-parallel get", file));
+                    }
+
+                    offset = file.length();
+                }
+                else {
+                    state = sessions.create(key)
+                        .set("id", meta.getId())
+                        .setLong("modified", meta.getModifiedDate().getValue());
+                    state.save();
+                }
+            }
+
+            FileInputStream partial = offset > 0 ? new FileInputStream(file) : null;
+            String          actual;
+
+            try {
+                if (partial != null) {
+                    // The part downloaded earlier has to be part of the checksum as well
+                    digest.update(partial.getChannel(), 0, offset);
+                }
+
+                if (meta.getFileSize() == null || offset < meta.getFileSize()) {
+                    OutputStream os = file == null ? out : new FileOutputStream(file, true);
+
+                    try {
+                        MediaHttpDownloader dl    = new MediaHttpDownloader(ht, client.getRequestFactory().getInitializer());
+                        ChunkSizer          sizer = chunkSizer(chunkSize, MediaHttpDownloader.MAXIMUM_CHUNK_SIZE, progress);
+
+                        dl.setDirectDownloadEnabled(false);
+                        dl.setChunkSize(sizer.size());
+
+                        // Only fetch the missing tail of a partial download
+                        dl.setBytesDownloaded(offset);
+
+                        // The listener also feeds chunk timings back to the sizer
+                        dl.setProgressListener(new ProgressListener(progress, sizer, offset));
+
+                        dl.download(link, digest.wrap(os));
+                    }
+                    finally {
+                        if (file != null) {
+                            os.close();
+                        }
+                    }
+                }
+
+                actual = digest.finish();
+            }
+            finally {
+                if (partial != null) {
+                    partial.close();
+                }
+            }
+
+            if (state != null) {
+                state.delete();
+            }
+
+            verifyChecksum(meta.getTitle(), meta.getMd5Checksum(), actual, progress);
+        }
+        finally {
+            digest.close();
+        }
+    }
+
+    public static com.google.api.services.drive.model.File upload(Drive client, String local, String root, String remote, String mime,
+                                                                  boolean progress, float chunkSize, int readAhead, File spillDir,
+                                                                  ExponentialBackOff.Builder backoffBuilder, boolean resume)
+        throws IOException {
+
+        com.google.api.services.drive.model.File meta = new com.google.api.services.drive.model.File();
+        meta.setTitle(remote);
+        meta.setMimeType(mime);
+
+        if (root != null) {
+            meta.setParents(Arrays.asList(new ParentReference().setId(root)));
+        }
+
+        // Checksum the bytes as they are sent; stdin cannot be read again afterwards
+        AsyncDigest digest = new AsyncDigest();
+
+        try {
+            ChunkSizer        sizer = chunkSizer(chunkSize, Integer.MAX_VALUE, progress);
+            ResumableUploader ul    = new ResumableUploader(client, sizer)
+                .setBackOff(backoffBuilder)
+                .setProgress(progress)
+                .setDigest(digest)
+                .setStats(stats);
+
+            com.google.api.services.drive.model.File result;
+
+            if (local.equals("-")) {
+                if (resume) {
+                    throw new IOException("Only uploads of local files can be resumed");
+                }
+
+                // Fill a few chunk buffers from stdin in the background, so the producer is not
+                // stalled while a chunk is on the wire
+                InputStream is = stdin(sizer.size(), readAhead);
+
+                try {
+                    // Streaming upload with GZip encoding has horrible performance, so the chunks are
+                    // sent as-is. Each chunk is kept until the server has confirmed it, so it can be
+                    // resent after an error.
+                    result = ul.setSpillDirectory(spillDir).upload(meta, is);
+                }
+                finally {
+                    is.close();
+                }
+            }
+            else if (compress) {
+                // The compressed size is not known up front, so the file is sent like a stream
+                InputStream is = new FileInputStream(local);
+                InputStream gz = null;
+
+                try {
+                    gz     = compressed(is);
+                    result = ul.upload(meta, gz);
+                }
+                finally {
+                    if (gz != null) {
+                        gz.close();
+                    }
+
+                    is.close();
+                }
+            }
+            else {
+                // The session is saved as the upload progresses, so it can be continued with --resume
+                result = ul.upload(meta, new File(local), new SessionStore(new File(appDataDir(), "sessions")), resume);
+            }
+
+            if (index != null) {
+                index.put(result);
+            }
+
+            verifyChecksum(remote, result.getMd5Checksum(), digest.finish(), progress);
+            return result;
+        }
+        finally {
+            digest.close();
+        }
+    }
+
+    public static com.google.api.services.drive.model.File uploadStriped(final Drive client, String root, String remote, String mime,
+                                                                         boolean progress, final float chunkSize, int segmentSize, int jobs,
+                                                                         int readAhead, File spillDir,
+                                                                         final ExponentialBackOff.Builder backoffBuilder)
+        throws IOException {
+
+        com.google.api.services.drive.model.File meta = new com.google.api.services.drive.model.File();
+        meta.setTitle(remote);
+        meta.setMimeType(mime);
+
+        if (root != null) {
+            meta.setParents(Arrays.asList(new ParentReference().setId(root)));
+        }
+
+        InputStream is = stdin(MediaHttpUploader.MINIMUM_CHUNK_SIZE * 4, readAhead);
+
+        com.google.api.services.drive.model.File result;
+
+        try {
+            // Each segment is checked against its own MD5; the manifest records the stream's
+            result = new StripedUploader(client, segmentSize, jobs, new StripedUploader.UploaderFactory() {
+                    @Override public ResumableUploader create() {
+                        return new ResumableUploader(client, chunkSizer(chunkSize, Integer.MAX_VALUE, false))
+                            .setBackOff(backoffBuilder)
+                            .setStats(stats);
+                    }
+                })
+                .setSpillDirectory(spillDir)
+                .setProgress(progress)
+                .upload(meta, is);
+        }
+        finally {
+            is.close();
+        }
+
+        if (index != null) {
+            index.put(result);
+        }
+
+        return result;
+    }
+
+    private static void downloadStriped(Drive client, com.google.api.services.drive.model.File meta, File file,
+                                        OutputStream out, boolean progress, float chunkSize, int parallel, boolean resume)
+        throws IOException {
+        if (resume) {
+            throw new IOException(String.format("Striped download of '%s' cannot be resumed", meta.getTitle()));
+        }
+
+        StripeManifest                  manifest = StripeManifest.load(client, meta);
+        List<ParallelDownloader.Segment> segments = new ArrayList<ParallelDownloader.Segment>();
+
+        for (StripeManifest.Segment segment : manifest.getSegments()) {
+            segments.add(new ParallelDownloader.Segment(segment.getDownloadUrl(client), segment.size));
+        }
+
+        downloadSegments(client, meta.getTitle(), manifest.getSize(), manifest.getMd5(), segments, file, out,
+                         progress, chunkSize, parallel);
+    }
+
+    public static com.google.api.services.drive.model.File uploadDeduped(final Drive client, String root, String remote, String store,
+                                                                         String mime, boolean progress, final float chunkSize, int jobs,
+                                                                         int readAhead, final ExponentialBackOff.Builder backoffBuilder)
+        throws IOException {
+        com.google.api.services.drive.model.File meta = new com.google.api.services.drive.model.File();
+        meta.setTitle(remote);
+        meta.setMimeType(mime);
+
+        if (root != null) {
+            meta.setParents(Arrays.asList(new ParentReference().setId(root)));
+        }
+
+        // The chunk store is shared by all backups, so it does not depend on --parent
+        FolderCache folders = new FolderCache(client, index);
+        String      folder  = "root";
+
+        for (String name : store.split("/")) {
+            if (!name.isEmpty()) {
+                folder = folders.resolve(folder, name, true);
+            }
+        }
+
+        // Without the local index, the chunk index is not trusted either
+        ChunkIndex chunks = new ChunkIndex(client, new File(appDataDir(), "chunks"), folder, index);
+
+        InputStream is = stdin(MediaHttpUploader.MINIMUM_CHUNK_SIZE * 4, readAhead);
+
+        com.google.api.services.drive.model.File result;
+
+        try {
+            result = new DedupUploader(client, folder, chunks, jobs, new StripedUploader.UploaderFactory() {
+                    @Override public ResumableUploader create() {
+                        return new ResumableUploader(client, chunkSizer(chunkSize, Integer.MAX_VALUE, false))
+                            .setBackOff(backoffBuilder)
+                            .setStats(stats);
+                    }
+                })
+                .setProgress(progress)
+                .upload(meta, is);
+        }
+        finally {
+            is.close();
+            chunks.close();
+        }
+
+        if (index != null) {
+            index.put(result);
+        }
+
+        return result;
+    }
+
+    private static void downloadDeduped(Drive client, com.google.api.services.drive.model.File meta, File file,
+                                        OutputStream out, boolean progress, float chunkSize, int parallel, boolean resume)
+        throws IOException {
+        if (resume) {
+            throw new IOException(String.format("Deduplicated download of '%s' cannot be resumed", meta.getTitle()));
+        }
+
+        DedupManifest                    manifest = DedupManifest.load(client, meta);
+        List<ParallelDownloader.Segment> segments = new ArrayList<ParallelDownloader.Segment>();
+
+        for (DedupManifest.Chunk chunk : manifest.getChunks()) {
+            segments.add(new ParallelDownloader.Segment(chunk.getDownloadUrl(client), chunk.size));
+        }
+
+        downloadSegments(client, meta.getTitle(), manifest.getSize(), manifest.getMd5(), segments, file, out,
+                         progress, chunkSize, parallel);
+    }
+
+    /** Joins {@code segments} into {@code file}, or {@code out} if it is null, and verifies the result. */
+    private static void downloadSegments(Drive client, String name, long size, String md5, List<ParallelDownloader.Segment> segments,
+                                         File file, OutputStream out, boolean progress, float chunkSize, int parallel)
+        throws IOException {
+        if (progress) {
+            System.err.println(String.format("Downloading %d bytes from %d segments ...", size, segments.size()));
+        }
+
+        AsyncDigest digest = new AsyncDigest();
+
+        try {
+            ParallelDownloader pd = new ParallelDownloader(client.getRequestFactory(),
+                                                               parallel > 1 ? parallel : STRIPED_CONNECTIONS,
+                                                               chunkSizer(chunkSize, Integer.MAX_VALUE, progress).size())
+                .setProgress(progress)
+                .setDigest(digest)
+                .setStats(stats);
+
+            if (file == null) {
+                pd.download(segments, out);
+            }
+            else {
+                pd.download(segments, file);
+            }
+
+            verifyChecksum(name, md5, digest.finish(), progress);
+        }
+        finally {
+            digest.close();
+        }
+    }
+
+    /**
+     * Returns standard input, compressed if {@code --compress} was given and read ahead into
+     * {@code readAhead} buffers of {@code bufferSize} bytes. Closing it stops the background
+     * threads, but leaves standard input itself open.
+     */
+    private static InputStream stdin(int bufferSize, int readAhead) {
+        final InputStream gz = compressed(System.in);
+        final InputStream is = readAhead > 0 ? new ReadAheadInputStream(gz, bufferSize, readAhead) : gz;
+
+        return new FilterInputStream(is) {
+            @Override public void close()
+                throws IOException {
+                if (is != gz) {
+                    is.close();
+                }
+
+                if (gz != System.in) {
+                    gz.close();
+                }
+            }
+        };
+    }
+
+    /** Returns {@code is} compressed on all cores if {@code --compress} was given. */
+    private static InputStream compressed(InputStream is) {
+        return compress ? new ParallelGzipInputStream(is, Runtime.getRuntime().availableProcessors()) : is;
+    }
+
+    public static void downloadAll(final Drive client, final HttpTransport ht, final String root, List<String> names, boolean tree, int jobs,
+                                   final boolean progress, final float chunkSize, final int parallel, final boolean resume)
+        throws IOException {
+        TransferPool pool    = new TransferPool(jobs);
+        FolderCache  folders = new FolderCache(client, index);
+
+        for (final String name : names) {
+            if (tree) {
+                try {
+                    downloadTree(client, ht, folders.resolve(root == null ? "root" : root, name, false), localFile(name), pool,
+                                 progress, chunkSize, parallel, resume);
+                }
+                catch (IOException ex) {
+                    pool.failed(name, ex);
+                }
+            }
+            else {
+                pool.submit(name, new TransferPool.Transfer() {
+                    @Override public long run()
+                        throws IOException {
+                        return sizeOf(download(client, ht, root, name, name, progress, chunkSize, parallel, resume));
+                    }
+                });
+            }
+        }
+
+        checkFailures(pool.finish());
+    }
+
+    public static void uploadAll(final Drive client, final String root, List<String> names, boolean tree, int jobs, final String mime,
+                                 final boolean progress, final float chunkSize, final ExponentialBackOff.Builder backoffBuilder, final boolean resume)
+        throws IOException {
+        TransferPool pool    = new TransferPool(jobs);
+        FolderCache  folders = new FolderCache(client, index);
+
+        for (String name : names) {
+            File file = localFile(name);
+
+            if (tree && file.isDirectory()) {
+                try {
+                    uploadTree(client, file, folders.resolve(root == null ? "root" : root, file.getName(), true), folders, pool,
+                               mime, progress, chunkSize, backoffBuilder, resume);
+                }
+                catch (IOException ex) {
+                    pool.failed(name, ex);
+                }
+            }
+            else {
+                uploadFile(client, file, root, pool, mime, progress, chunkSize, backoffBuilder, resume);
+            }
+        }
+
+        checkFailures(pool.finish());
+    }
+
+    /**
+     * Trashes the files, or with {@code tree} the folders, called {@code names}. The last part of
+     * a name may contain the wildcards '*' and '?', and if {@code olderThan} is positive, only
+     * entries that have not been modified for that many milliseconds are trashed. Each folder is
+     * listed once to find the matches, which are then trashed in batch requests, {@code jobs} at
+     * a time.
+     */
+    public static void trashAll(Drive client, String root, List<String> names, boolean tree, long olderThan, int jobs)
+        throws IOException {
+        long   started = System.currentTimeMillis();
+        String parent  = root == null ? "root" : root;
+        int    failed  = 0;
+
+        Map<String, Map<String, Pattern>> patterns = new LinkedHashMap<String, Map<String, Pattern>>();
+
+        for (String name : names) {
+            int    slash  = name.lastIndexOf('/');
+            String folder = parent;
+
+            try {
+                if (slash != -1) {
+                    folder = resolvePath(client, parent, name.substring(0, slash));
+                }
+            }
+            catch (IOException ex) {
+                System.err.println(String.format("FAILED  %s: %s", name, ex.getMessage()));
+                ++failed;
+                continue;
+            }
+
+            if (!patterns.containsKey(folder)) {
+                patterns.put(folder, new LinkedHashMap<String, Pattern>());
+            }
+
+            patterns.get(folder).put(name, glob(name.substring(slash + 1)));
+        }
+
+        Map<String, List<com.google.api.services.drive.model.File>> matches =
+            new LinkedHashMap<String, List<com.google.api.services.drive.model.File>>();
+
+        for (Map.Entry<String, Map<String, Pattern>> folder : patterns.entrySet()) {
+            for (String name : folder.getValue().keySet()) {
+                matches.put(name, new ArrayList<com.google.api.services.drive.model.File>());
+            }
+
+            com.google.api.services.drive.Drive.Files.List request = client.files().list()
+                .setQ(String.format("'%s' in parents and trashed=false", folder.getKey()))
+                .setFields("items(id,title,mimeType,modifiedDate,downloadUrl),nextPageToken")
+                .setMaxResults(1000);
+
+            do {
+                com.google.api.services.drive.model.FileList files = request.execute();
+
+                for (com.google.api.services.drive.model.File file : files.getItems()) {
+                    if (FolderCache.FOLDER_MIME_TYPE.equals(file.getMimeType()) != tree ||
+                        (olderThan > 0 && file.getModifiedDate().getValue() > started - olderThan)) {
+                        continue;
+                    }
+
+                    for (Map.Entry<String, Pattern> name : folder.getValue().entrySet()) {
+                        if (name.getValue().matcher(file.getTitle()).matches()) {
+                            matches.get(name.getKey()).add(file);
+                        }
+                    }
+                }
+
+                request.setPageToken(files.getNextPageToken());
+            } while (request.getPageToken() != null && request.getPageToken().length() > 0);
+        }
+
+        Map<String, String> titles = new LinkedHashMap<String, String>();
+
+        for (Map.Entry<String, List<com.google.api.services.drive.model.File>> match : matches.entrySet()) {
+            String name   = match.getKey();
+            String prefix = name.substring(0, name.lastIndexOf('/') + 1);
+
+            try {
+                if (!isGlob(name) && match.getValue().size() > 1) {
+                    throw new IOException(String.format(tree ? "Folder '%s' matched more than one folder" : "File '%s' matched more than one document", name));
+                }
+                else if (!isGlob(name) && match.getValue().isEmpty() && olderThan <= 0) {
+                    throw new FileNotFoundException(String.format("%s '%s' not found", tree ? "Folder" : "File", name));
+                }
+
+                for (com.google.api.services.drive.model.File file : match.getValue()) {
+                    titles.put(file.getId(), prefix + file.getTitle());
+
+                    if (StripeManifest.isManifest(file)) {
+                        // The segments of a striped upload go along with it
+                        for (StripeManifest.Segment segment : StripeManifest.load(client, file).getSegments()) {
+                            titles.put(segment.id, String.format("%s%s (segment %s)", prefix, file.getTitle(), segment.id));
+                        }
+                    }
+                }
+            }
+            catch (IOException ex) {
+                System.err.println(String.format("FAILED  %s: %s", name, ex.getMessage()));
+                ++failed;
+            }
+        }
+
+        Map<String, String> errors  = new TrashBatcher(client, jobs).trash(titles.keySet());
+        Set<String>         trashed = new HashSet<String>();
+
+        for (Map.Entry<String, String> title : titles.entrySet()) {
+            String error = errors.get(title.getKey());
+
+            if (error != null) {
+                System.err.println(String.format("FAILED  %s: %s", title.getValue(), error));
+                ++failed;
+            }
+            else {
+                System.err.println(String.format("OK      %s", title.getValue()));
+                trashed.add(title.getKey());
+
+                if (index != null) {
+                    index.remove(title.getKey());
+                }
+            }
+        }
+
+        // Deduplicated uploads must not refer to chunks that are gone
+        ChunkIndex.forget(new File(appDataDir(), "chunks"), trashed);
+
+        System.err.println(String.format("%d of %d files trashed in %d batch requests (%.1f s). %d failed.",
+                                         titles.size() - errors.size(), titles.size(),
+                                         (titles.size() + TrashBatcher.MAX_BATCH_SIZE - 1) / TrashBatcher.MAX_BATCH_SIZE,
+                                         Math.max(1, System.currentTimeMillis() - started) / 1000.0, failed));
+        checkFailures(failed);
+    }
+
+    private static boolean isGlob(String name) {
+        return name.indexOf('*') != -1 || name.indexOf('?') != -1;
+    }
+
+    /** Translates a name with the wildcards '*' and '?' into a regular expression. */
+    private static Pattern glob(String name) {
+        StringBuilder regex   = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+
+        for (char c : name.toCharArray()) {
+            if (c == '*' || c == '?') {
+                regex.append(Pattern.quote(literal.toString())).append(c == '*' ? ".*" : ".");
+                literal.setLength(0);
+            }
+            else {
+                literal.append(c);
+            }
+        }
+
+        return Pattern.compile(regex.append(Pattern.quote(literal.toString())).toString(), Pattern.DOTALL);
+    }
+
+    private static void downloadTree(final Drive client, final HttpTransport ht, String folder, File dir, TransferPool pool,
+                                     final boolean progress, final float chunkSize, final int parallel, final boolean resume)
+        throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException(String.format("Failed to create directory '%s'", dir));
+        }
+
+        com.google.api.services.drive.Drive.Files.List request = client.files().list()
+            .setQ(String.format("'%s' in parents and trashed=false", folder))
+            .setMaxResults(1000);
+
+        do {
+            com.google.api.services.drive.model.FileList files = request.execute();
+
+            for (final com.google.api.services.drive.model.File file : files.getItems()) {
+                if (!isSafeName(file.getTitle())) {
+                    // Never let a remote title place a file outside the target directory
+                    pool.failed(dir.getPath() + File.separator + file.getTitle(),
+                                new IOException("Refusing to download a file with an unsafe name"));
+                    continue;
+                }
+
+                final File local = new File(dir, file.getTitle());
+
+                if (FolderCache.FOLDER_MIME_TYPE.equals(file.getMimeType())) {
+                    downloadTree(client, ht, file.getId(), local, pool, progress, chunkSize, parallel, resume);
+                }
+                else if (file.getDownloadUrl() != null) {
+                    pool.submit(local.getPath(), new TransferPool.Transfer() {
+                        @Override public long run()
+                            throws IOException {
+                            download(client, ht, file, local.getPath(), progress, chunkSize, parallel, resume);
+                            return sizeOf(file);
+                        }
+                    });
+                }
+            }
+
+            request.setPageToken(files.getNextPageToken());
+        } while (request.getPageToken() != null && request.getPageToken().length() > 0);
+    }
+
+    /** Returns true if a remote title can be used as a single local path component. */
+    private static boolean isSafeName(String title) {
+        return title != null && !title.isEmpty() && !title.equals(".") && !title.equals("..") &&
+            title.indexOf('/') == -1 && title.indexOf(File.separatorChar) == -1 && title.indexOf('\0') == -1;
+    }
 
-                try {
-                    Properties props = new Properties();
-                    props.load(resource("/build.properties"));
+    private static void uploadTree(Drive client, File dir, String folder, FolderCache folders, TransferPool pool, String mime,
+                                   boolean progress, float chunkSize, ExponentialBackOff.Builder backoffBuilder, boolean resume)
+        throws IOException {
+        File[] files = dir.listFiles();
 
-                    version = props.getProperty("version", "?");
-                    date    = props.getProperty("date", "?");
-                }
-                catch (Exception ignored) {}
+        if (files == null) {
+            throw new IOException(String.format("Failed to list directory '%s'", dir));
+        }
 
-                System.err.println(String.format("%s %s. Build %s (%s)",
-                                                 APP_NAME, APP_VERSION, version, date));
-                System.err.println();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                uploadTree(client, file, folders.resolve(folder, file.getName(), true), folders, pool,
+                           mime, progress, chunkSize, backoffBuilder, resume);
             }
-
-            if (cmd.hasOption("help")) {
-                throw new ParseException(null);
+            else {
+                uploadFile(client, file, folder, pool, mime, progress, chunkSize, backoffBuilder, resume);
             }
+        }
+    }
 
-            if (args.length < 1) {
-                if (cmd.hasOption("version")) {
-                    return;
-                }
-                else {
-                    throw new ParseException("<cmd> missing");
-                }
+    private static void uploadFile(final Drive client, final File file, final String folder, TransferPool pool, final String mime,
+                                   final boolean progress, final float chunkSize, final ExponentialBackOff.Builder backoffBuilder,
+                                   final boolean resume) {
+        pool.submit(file.getPath(), new TransferPool.Transfer() {
+            @Override public long run()
+                throws IOException {
+                return sizeOf(upload(client, file.getPath(), folder, file.getName(),
+                                     mime != null ? mime : new javax.activation.MimetypesFileTypeMap().getContentType(file),
+                                     progress, chunkSize, 0, null, backoffBuilder, resume));
             }
+        });
+    }
 
-            String command = args[0];
-
-            JsonFactory          jf = JacksonFactory.getDefaultInstance();
-            HttpTransport        ht = GoogleNetHttpTransport.newTrustedTransport();
-            GoogleClientSecrets gcs = GoogleClientSecrets.load(jf, resource("/client_secrets.json"));
+    /**
+     * Uploads the files in {@code dir} that are new or have changed since the last sync to the
+     * same relative paths in {@code root}, {@code jobs} at a time. Files whose size and
+     * modification time are unchanged are skipped without being read. With {@code delete},
+     * remote files whose local file has been removed are moved to the trash.
+     */
+    public static void sync(final Drive client, String root, File dir, boolean delete, int jobs, final String mime,
+                            final boolean progress, final float chunkSize, final ExponentialBackOff.Builder backoffBuilder)
+        throws IOException {
+        if (!dir.isDirectory()) {
+            throw new IOException(String.format("'%s' is not a directory", dir));
+        }
 
-            Set<String> scopes = new HashSet<String>();
-            scopes.add(DriveScopes.DRIVE_FILE);
-            scopes.add(DriveScopes.DRIVE_METADATA_READONLY);
+        final String      folder  = root == null ? "root" : root;
+        final SyncState   state   = new SyncState(new File(appDataDir(), "sync"), dir, folder);
+        final FolderCache folders = new FolderCache(client, index);
+        Map<String, File> files   = new TreeMap<String, File>();
+        TransferPool      pool    = new TransferPool(jobs);
+        int               skipped = 0;
+        int               removed = 0;
 
-            GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(ht, jf, gcs, scopes)
-                .setDataStoreFactory(new FileDataStoreFactory(appDataDir()))
-                .build();
+        walk(dir, "", true, files);
 
-            VerificationCodeReceiver vcr = !cmd.hasOption("oob")
-                ? new LocalServerReceiver()
-                : new GooglePromptReceiver();
+        for (Map.Entry<String, File> e : files.entrySet()) {
+            final String          path  = e.getKey();
+            final File            file  = e.getValue();
+            final SyncState.Entry known = state.get(path);
 
-            Credential creds = new AuthorizationCodeInstalledApp(flow, vcr)
-                .authorize("user");
+            if (known != null && known.matches(file)) {
+                ++skipped;
+                continue;
+            }
 
-            List<HttpRequestInitializer> hrilist = new ArrayList<HttpRequestInitializer>();
-            hrilist.add( creds );
+            pool.submit(path, new TransferPool.Transfer() {
+                @Override public long run()
+                    throws IOException {
+                    return syncFile(client, folders, folder, state, path, file, known, mime, progress, chunkSize, backoffBuilder);
+                }
+            });
+        }
 
-            if (cmd.hasOption("auto-retry")) {
-                ExponentialBackOff.Builder backoffBuilder = new ExponentialBackOff.Builder()
-                    .setInitialIntervalMillis(6*1000) // 6 seconds initial retry period
-                    .setMaxElapsedTimeMillis(45*60*1000) // 45 minutes maximum total wait time
-                    .setMaxIntervalMillis(15*60*1000) // 15 minute maximum interval
-                    .setMultiplier(1.85)
-                    .setRandomizationFactor(0.5);
-                // Expected total waiting time before giving up = sum([6*1.85^i for i in range(10)])
-                // ~= 55 minutes
-                // Note that Google API's HttpRequest allows for up to 10 retry.
-                hrilist.add( new ExponentialBackOffHttpRequestInitializer(backoffBuilder) );
+        for (final String path : state.paths()) {
+            if (files.containsKey(path)) {
+                continue;
             }
-            HttpRequestInitializerStacker hristack = new HttpRequestInitializerStacker(hrilist);
 
-            Drive client = new Drive.Builder(ht, jf, hristack)
-                .setApplicationName(APP_NAME + "/" + APP_VERSION)
-                .build();
+            ++removed;
+
+            if (delete) {
+                pool.submit(path + " (trashed)", new TransferPool.Transfer() {
+                    @Override public long run()
+                        throws IOException {
+                        String id = state.get(path).id;
+
+                        try {
+                            client.files().trash(id).execute();
+                        }
+                        catch (HttpResponseException ex) {
+                            // Already deleted on the server is fine too
+                            if (ex.getStatusCode() != 404) {
+                                throw ex;
+                            }
+                        }
+
+                        if (index != null) {
+                            index.remove(id);
+                        }
+
+                        state.remove(path);
+                        return 0;
+                    }
+                });
+            }
+        }
 
-            boolean verbose = cmd.hasOption("verbose");
-            float chunkSize = Float.parseFloat(cmd.getOptionValue("chunk-size", "10.0"));
+        System.err.println(String.format("%d files unchanged, %d new or changed, %d deleted locally%s.",
+                                         skipped, files.size() - skipped, removed,
+                                         removed > 0 && !delete ? " (use --delete to trash them)" : ""));
 
-            String root = null;
+        try {
+            checkFailures(pool.finish());
+        }
+        finally {
+            // Keep what was done, even if some files failed
+            state.save();
+        }
+    }
 
-            if (cmd.hasOption("parent")) {
-                root = findWorkingDirectory(client, cmd.getOptionValue("parent"));
+    private static long syncFile(Drive client, FolderCache folders, String root, SyncState state, String path, File file,
+                                 SyncState.Entry known, String mime, boolean progress, float chunkSize,
+                                 ExponentialBackOff.Builder backoffBuilder)
+        throws IOException {
+        long   size     = file.length();
+        long   modified = file.lastModified();
+        String folder   = root;
+        String id       = known != null ? known.id : null;
+        String md5      = null;
+
+        for (String name : path.substring(0, path.lastIndexOf('/') + 1).split("/")) {
+            if (!name.isEmpty()) {
+                folder = folders.resolve(folder, name, true);
             }
+        }
 
-            if (command.equals("get")) {
-                String file;
-
-                if (args.length < 2) {
-                    throw new ParseException("<file> missing");
-                }
-                else if (args.length == 2) {
-                    file = args[1];
-                }
-                else {
-                    throw new ParseException("Too many arguments");
-                }
+        if (known == null) {
+            // Take over a matching file uploaded by other means, or update it instead of adding a copy
+            com.google.api.services.drive.model.File remote = findExisting(client, file.getName(), folder);
 
-                download(client, ht, root, file, cmd.getOptionValue("output", file),
-                         verbose, chunkSize);
+            if (remote != null) {
+                id     = remote.getId();
+                known  = new SyncState.Entry(remote.getFileSize() != null ? remote.getFileSize() : -1, 0,
+                                             remote.getMd5Checksum(), id);
             }
-            else if (command.equals("put")) {
-                String file;
+        }
 
-                if (args.length < 2) {
-                    throw new ParseException("<file> missing");
-                }
-                else if (args.length == 2) {
-                    file  = args[1];
-                }
-                else {
-                    throw new ParseException("Too many arguments");
-                }
+        if (known != null && known.size == size) {
+            // Probably just touched; compare the contents before sending them again
+            md5 = md5(file);
 
-                upload(client, file, root, cmd.getOptionValue("output", new File(file).getName()),
-                       cmd.getOptionValue("mime", new javax.activation.MimetypesFileTypeMap().getContentType(file)),
-                       verbose, chunkSize);
+            if (md5.equals(known.md5)) {
+                state.put(path, new SyncState.Entry(size, modified, md5, id));
+                return 0;
             }
-            else if (command.equals("trash")) {
-                String file;
+        }
 
-                if (args.length < 2) {
-                    throw new ParseException("<file> missing");
-                }
-                else if (args.length == 2) {
-                    file = args[1];
+        com.google.api.services.drive.model.File meta = new com.google.api.services.drive.model.File();
+        meta.setTitle(file.getName());
+        meta.setMimeType(mime != null ? mime : new javax.activation.MimetypesFileTypeMap().getContentType(file));
+        meta.setParents(Arrays.asList(new ParentReference().setId(folder)));
+
+        AsyncDigest                              digest = new AsyncDigest();
+        try {
+            com.google.api.services.drive.model.File result;
+
+            try {
+                result = syncUpload(client, meta, file, id, digest, progress, chunkSize, backoffBuilder);
+            }
+            catch (HttpResponseException ex) {
+                if (id == null || ex.getStatusCode() != 404) {
+                    throw ex;
                 }
-                else {
-                    throw new ParseException("Too many arguments");
+
+                // The remote file has been deleted since the last sync; add it again. The update
+                // was refused before any content was read, so the digest is still unused
+                if (index != null) {
+                    index.remove(id);
                 }
 
-                trash(client, root, file);
+                result = syncUpload(client, meta, file, null, digest, progress, chunkSize, backoffBuilder);
             }
-            else if (command.equals("md5") || command.equals("list")) {
-                if (args.length > 1) {
-                    throw new ParseException("Too many arguments");
-                }
 
-                list(client, root, command.equals("md5"));
+            if (index != null) {
+                index.put(result);
             }
-            else {
-                throw new ParseException("Invalid command: " + command);
+
+            verifyChecksum(path, result.getMd5Checksum(), digest.finish(), progress);
+
+            if (file.lastModified() == modified) {
+                // Otherwise it changed while it was sent, and will be sent again next time
+                state.put(path, new SyncState.Entry(size, modified, result.getMd5Checksum(), result.getId()));
             }
+
+            return sizeOf(result);
         }
-        catch (ParseException ex) {
-            PrintWriter   pw = new PrintWriter(System.err);
-            HelpFormatter hf = new HelpFormatter();
+        finally {
+            digest.close();
+        }
+    }
 
-            hf.printHelp(pw, 80, "stream2gdrive [OPTIONS] <cmd> [<options>]",
-                         "  Commands: get <file>, list, md5, put <file>, trash <file>.",
-                         opt, 2, 8,
-                         "Use '-' as <file> for standard input.");
+    private static com.google.api.services.drive.model.File syncUpload(Drive client, com.google.api.services.drive.model.File meta,
+                                                                       File file, String id, AsyncDigest digest, boolean progress,
+                                                                       float chunkSize, ExponentialBackOff.Builder backoffBuilder)
+        throws IOException {
+        return new ResumableUploader(client, chunkSizer(chunkSize, Integer.MAX_VALUE, progress))
+            .setBackOff(backoffBuilder)
+            .setProgress(progress)
+            .setDigest(digest)
+            .setStats(stats)
+            .setFileId(id)
+            .upload(meta, file, new SessionStore(new File(appDataDir(), "sessions")), true);
+    }
 
-            if (ex.getMessage() != null && !ex.getMessage().isEmpty()) {
-                pw.println();
-                hf.printWrapped(pw, 80, String.format("Error: %s.", ex.getMessage()));
+    /** Collects the regular files below {@code dir} by their path relative to it, with '/' separators. */
+    private static void walk(File dir, String prefix, boolean tree, Map<String, File> files)
+        throws IOException {
+        File[] children = dir.listFiles();
+
+        if (children == null) {
+            throw new IOException(String.format("Failed to list directory '%s'", dir));
+        }
+
+        for (File child : children) {
+            if (child.isDirectory()) {
+                if (tree) {
+                    walk(child, prefix + child.getName() + "/", tree, files);
+                }
+            }
+            else if (child.isFile()) {
+                files.put(prefix + child.getName(), child);
             }
+        }
+    }
 
-            pw.flush();
-            System.exit(EX_USAGE);
+    /** Returns the file called {@code name} in the folder {@code parent}, or null if there is none. */
+    private static com.google.api.services.drive.model.File findExisting(Drive client, String name, String parent)
+        throws IOException {
+        if (index != null) {
+            // The index is kept current, so there is no need to ask the server about misses
+            return index.findFile(name, parent);
         }
-        catch (NumberFormatException ex) {
-            System.err.println("Invalid decimal number: " + ex.getMessage() + ".");
-            System.exit(EX_USAGE);
+
+        try {
+            return findFile(client, name, parent);
         }
-        catch (IOException ex) {
-            System.err.println("I/O error: " + ex.getMessage() + ".");
-            System.exit(EX_IOERR);
+        catch (FileNotFoundException ex) {
+            return null;
         }
     }
 
-    public static void download(Drive client, HttpTransport ht, String root, String remote, String local, boolean progress, float chunkSize)
+    private static String md5(File file)
         throws IOException {
-        OutputStream os;
+        AsyncDigest     digest = new AsyncDigest();
+        FileInputStream fis    = null;
 
-        if (local.equals("-")) {
-            os = System.out;
+        try {
+            fis = new FileInputStream(file);
+            digest.update(fis.getChannel(), 0, file.length());
+            return digest.finish();
         }
-        else {
-            File file = new File(local);
+        finally {
+            digest.close();
 
-            if (file.exists()) {
-                throw new IOException(String.format("The local file '%s' already exists", file));
+            if (fis != null) {
+                fis.close();
             }
+        }
+    }
+
+    private static void checkBatch(CommandLine cmd, String[] args)
+        throws ParseException {
+        if (cmd.hasOption("output")) {
+            throw new ParseException("--output cannot be used with more than one file or with --recursive");
+        }
 
-            os = new FileOutputStream(file);
+        for (int i = 1; i < args.length; ++i) {
+            if (args[i].equals("-")) {
+                throw new ParseException("'-' cannot be used with more than one file or with --recursive");
+            }
         }
+    }
 
-        String link = findFile(client, remote, root == null ? "root" : root).getDownloadUrl();
+    private static void checkFailures(int failed)
+        throws IOException {
+        if (failed != 0) {
+            throw new IOException(String.format("%d transfer%s failed", failed, failed == 1 ? "" : "s"));
+        }
+    }
 
-        MediaHttpDownloader dl = new MediaHttpDownloader(ht, client.getRequestFactory().getInitializer());
+    private static long sizeOf(com.google.api.services.drive.model.File file) {
+        return file.getFileSize() != null ? file.getFileSize() : 0;
+    }
 
-        dl.setDirectDownloadEnabled(false);
-        dl.setChunkSize(calcChunkSize(chunkSize));
+    /**
+     * Prints the files in {@code root}, and with {@code tree} in all its subfolders, {@code jobs}
+     * folders at a time. Subfolder files are printed with their path relative to {@code root}.
+     */
+    public static void list(Drive client, String root, final boolean md5, boolean tree, int jobs)
+        throws IOException {
+        final Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+        final String eol = System.getProperty("line.separator");
 
-        if (progress) {
-            dl.setProgressListener(new ProgressListener());
+        try {
+            new DriveLister(client, md5 ? "title,md5Checksum" : "title,lastModifyingUserName,fileSize,modifiedDate", jobs)
+                .walk(root == null ? "root" : root, tree, new DriveLister.Visitor() {
+                    @Override public void visit(String path, List<com.google.api.services.drive.model.File> files)
+                        throws IOException {
+                        StringBuilder sb = new StringBuilder(files.size() * 128);
+
+                        for (com.google.api.services.drive.model.File file : files) {
+                            if (md5) {
+                                sb.append(file.getMd5Checksum()).append(" *");
+                            }
+                            else {
+                                pad(sb, file.getMimeType(), -29).append(' ');
+                                pad(sb, file.getLastModifyingUserName(), -19).append(' ');
+                                pad(sb, file.getFileSize(), 12).append(' ');
+                                sb.append(file.getModifiedDate()).append(' ');
+                            }
+
+                            sb.append(path).append(file.getTitle()).append(eol);
+                        }
+
+                        synchronized (out) {
+                            out.append(sb);
+                        }
+                    }
+                });
+        }
+        finally {
+            // Print whatever was listed, even if a later page or folder failed
+            synchronized (out) {
+                out.flush();
+            }
         }
-
-        dl.download(new GenericUrl(link), os);
     }
 
-    public static void upload(Drive client, String local, String root, String remote, String mime, boolean progress, float chunkSize)
+    /**
+     * Compares the files in a local directory, and with {@code tree} its subdirectories, with the
+     * MD5 checksums that Google Drive reports for {@code root}. Local files are hashed on
+     * {@code threads} threads. Missing, extra and mismatched files are printed, and a
+     * {@link ChecksumMismatchException} is thrown if there are any.
+     */
+    public static void verify(Drive client, String root, File dir, boolean tree, int threads, final boolean progress)
         throws IOException {
+        final Map<String, Set<String>> remote = new HashMap<String, Set<String>>();
+        final Map<String, File>        local  = new TreeMap<String, File>();
+        final Set<String>              bad    = new TreeSet<String>();
+        final Map<String, String>      failed = new TreeMap<String, String>();
+        long                           start  = System.currentTimeMillis();
+
+        new DriveLister(client, "title,md5Checksum", threads).walk(root == null ? "root" : root, tree, new DriveLister.Visitor() {
+            @Override public void visit(String path, List<com.google.api.services.drive.model.File> files) {
+                synchronized (remote) {
+                    for (com.google.api.services.drive.model.File file : files) {
+                        // Google Docs and other native files have no checksum to compare with
+                        if (file.getMd5Checksum() != null) {
+                            if (!remote.containsKey(path + file.getTitle())) {
+                                remote.put(path + file.getTitle(), new HashSet<String>());
+                            }
+
+                            remote.get(path + file.getTitle()).add(file.getMd5Checksum().toLowerCase());
+                        }
+                    }
+                }
+            }
+        });
 
-        com.google.api.services.drive.model.File meta = new com.google.api.services.drive.model.File();
-        meta.setTitle(remote);
-        meta.setMimeType(mime);
+        walk(dir, "", tree, local);
 
-        if (root != null) {
-            meta.setParents(Arrays.asList(new ParentReference().setId(root)));
+        Set<String>       missing = new TreeSet<String>(remote.keySet());
+        Set<String>       extra   = new TreeSet<String>(local.keySet());
+        Map<String, File> common  = new HashMap<String, File>(local);
+
+        missing.removeAll(local.keySet());
+        extra.removeAll(remote.keySet());
+        common.keySet().retainAll(remote.keySet());
+
+        long bytes = new FileHasher(threads).hash(common, new FileHasher.Listener() {
+            @Override public void hashed(String path, File file, String md5, IOException error) {
+                synchronized (bad) {
+                    if (error != null) {
+                        failed.put(path, error.getMessage());
+                    }
+                    else if (!remote.get(path).contains(md5)) {
+                        bad.add(path);
+                    }
+                    else if (progress) {
+                        System.err.println(String.format("OK        %s", path));
+                    }
+                }
+            }
+        });
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        String eol = System.getProperty("line.separator");
+
+        for (String path : missing) {
+            out.append("MISSING   ").append(path).append(eol);
+        }
+
+        for (String path : extra) {
+            out.append("EXTRA     ").append(path).append(eol);
         }
 
-        AbstractInputStreamContent isc = local.equals("-")
-            ? new StreamContent(meta.getMimeType(), System.in)
-            : new FileContent(meta.getMimeType(), new File(local));
+        for (String path : bad) {
+            out.append("MISMATCH  ").append(path).append(eol);
+        }
+
+        out.flush();
 
-        Drive.Files.Insert insert = client.files().insert(meta, isc);
+        for (Map.Entry<String, String> failure : failed.entrySet()) {
+            System.err.println(String.format("FAILED    %s: %s", failure.getKey(), failure.getValue()));
+        }
 
-        MediaHttpUploader ul = insert.getMediaHttpUploader();
-        ul.setDirectUploadEnabled(false);
-        ul.setChunkSize(calcChunkSize(chunkSize));
+        double sec = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
 
-        if (progress) {
-            ul.setProgressListener(new ProgressListener());
+        System.err.println(String.format("%d of %d files verified, %d MiB in %.1f s (%.1f MiB/s). %d missing, %d extra, %d mismatched, %d failed.",
+                                         common.size() - bad.size() - failed.size(), remote.size(),
+                                         bytes / 1024 / 1024, sec, bytes / (1.0 * 1024 * 1024) / sec,
+                                         missing.size(), extra.size(), bad.size(), failed.size()));
+
+        if (!failed.isEmpty()) {
+            throw new IOException(String.format("%d file%s could not be read", failed.size(), failed.size() == 1 ? "" : "s"));
+        }
+        else if (!missing.isEmpty() || !extra.isEmpty() || !bad.isEmpty()) {
+            throw new ChecksumMismatchException(String.format("'%s' does not match Google Drive", dir));
+        }
+    }
+
+    /** Appends {@code value} padded to {@code width}; like {@code %-29s} if negative and {@code %12s} if not. */
+    private static StringBuilder pad(StringBuilder sb, Object value, int width) {
+        String text    = String.valueOf(value);
+        int    padding = Math.abs(width) - text.length();
+
+        if (width < 0) {
+            sb.append(text);
         }
 
-        // Streaming upload with GZip encoding has horrible performance!
-        insert.setDisableGZipContent(isc instanceof StreamContent);
+        for (int i = 0; i < padding; ++i) {
+            sb.append(' ');
+        }
 
-        insert.execute();
+        return width < 0 ? sb : sb.append(text);
     }
 
-    public static void list(Drive client, String root, boolean md5)
+    public static void trash(Drive client, String root, String remote)
         throws IOException {
-        com.google.api.services.drive.Drive.Files.List request = client.files().list()
-            .setQ(String.format("'%s' in parents and mimeType!='application/vnd.google-apps.folder' and trashed=false",
-                                root == null ? "root" : root))
-            .setMaxResults(1000);
 
-        do {
-            com.google.api.services.drive.model.FileList files = request.execute();
+        trash(client, findFile(client, remote, root == null ? "root" : root));
+    }
 
-            for (com.google.api.services.drive.model.File file : files.getItems()) {
-                if (md5) {
-                    System.out.println(String.format("%s *%s", file.getMd5Checksum(), file.getTitle()));
-                }
-                else {
-                    System.out.println(String.format("%-29s %-19s %12d %s %s",
-                                                     file.getMimeType(), file.getLastModifyingUserName(),
-                                                     file.getFileSize(), file.getModifiedDate(), file.getTitle()));
-                }
+    private static void trash(Drive client, com.google.api.services.drive.model.File meta)
+        throws IOException {
+        if (StripeManifest.isManifest(meta)) {
+            // The segments of a striped upload go along with it
+            for (StripeManifest.Segment segment : StripeManifest.load(client, meta).getSegments()) {
+                client.files().trash(segment.id).execute();
             }
+        }
 
-            request.setPageToken(files.getNextPageToken());
-        } while (request.getPageToken() != null && request.getPageToken().length() > 0);
+        client.files().trash(meta.getId()).execute();
+
+        if (index != null) {
+            index.remove(meta.getId());
+        }
+
+        ChunkIndex.forget(new File(appDataDir(), "chunks"), Collections.singleton(meta.getId()));
     }
 
-    public static void trash(Drive client, String root, String remote)
-        throws IOException {
+    private static ChunkSizer chunkSizer(float chunkSizeInMiB, int maximum, boolean progress) {
+        if (autoChunkSize) {
+            return new ChunkSizer(AUTO_CHUNK_INITIAL, MediaHttpUploader.MINIMUM_CHUNK_SIZE,
+                                  Math.min(maxChunkSize, maximum), true, progress);
+        }
+        else {
+            int size = Math.min(calcChunkSize(chunkSizeInMiB), maximum);
 
-        client.files().trash(findFile(client, remote, root == null ? "root" : root).getId()).execute();
+            return new ChunkSizer(size, MediaHttpUploader.MINIMUM_CHUNK_SIZE, size, false, progress);
+        }
     }
 
     private static int calcChunkSize(float chunkSizeInMiB) {
@@ -328,8 +1659,31 @@ public class Stream2GDrive {
         return Math.max(1, multiple) * MediaHttpUploader.MINIMUM_CHUNK_SIZE;
     }
 
+    private static void verifyChecksum(String name, String expected, String actual, boolean progress)
+        throws ChecksumMismatchException {
+        if (expected == null) {
+            // Google Docs and other native files have no checksum
+            return;
+        }
+        else if (!expected.equalsIgnoreCase(actual)) {
+            throw new ChecksumMismatchException(String.format("MD5 of '%s' is %s, but Google Drive reports %s",
+                                                              name, actual, expected));
+        }
+        else if (progress) {
+            System.err.println(String.format("MD5 checksum %s verified.", actual));
+        }
+    }
+
     private static String findWorkingDirectory(Drive client, String name)
         throws IOException {
+        String id = index != null ? index.findFolder(name) : null;
+
+        if (id != null) {
+            return id;
+        }
+        else if (name.indexOf('/') != -1) {
+            return resolvePath(client, "root", name);
+        }
 
         List<com.google.api.services.drive.model.File> folder = client.files().list()
             .setQ(String.format("title='%s' and mimeType='application/vnd.google-apps.folder' and trashed=false", name))
@@ -349,28 +1703,69 @@ public class Stream2GDrive {
 
     private static com.google.api.services.drive.model.File findFile(Drive client, String name, String parent)
         throws IOException {
+        com.google.api.services.drive.model.File indexed = index != null ? index.findFile(name, parent) : null;
+
+        if (indexed != null) {
+            return indexed;
+        }
+
+        int slash = name.lastIndexOf('/');
+
+        if (slash != -1) {
+            parent = resolvePath(client, parent, name.substring(0, slash));
+            name   = name.substring(slash + 1);
+        }
+
         List<com.google.api.services.drive.model.File> file = client.files().list()
             .setQ(String.format("title='%s' and '%s' in parents and mimeType!='application/vnd.google-apps.folder' and trashed=false", name, parent))
             .execute()
             .getItems();
 
         if (file.size() == 0) {
-            throw new IOException(String.format("File '%s' not found", name));
+            throw new FileNotFoundException(String.format("File '%s' not found", name));
         }
         else if (file.size() != 1) {
             throw new IOException(String.format("File '%s' matched more than one document", name));
         }
         else {
+            if (index != null) {
+                index.put(file.get(0));
+            }
+
             return file.get(0);
         }
     }
 
+    private static String resolvePath(Drive client, String parent, String path)
+        throws IOException {
+        FolderCache folders = new FolderCache(client, index);
+
+        for (String name : path.split("/")) {
+            if (!name.isEmpty()) {
+                parent = folders.resolve(parent, name, false);
+            }
+        }
+
+        return parent;
+    }
+
     private static Reader resource(String name)
         throws IOException {
         return new InputStreamReader(Stream2GDrive.class.getResourceAsStream(name));
     }
 
 
+    /** Resolves a local path against the directory the command was started in. */
+    private static File localFile(String name) {
+        File file = new File(name);
+
+        return workingDir == null || file.isAbsolute() ? file : new File(workingDir, name);
+    }
+
+    private static File daemonFile() {
+        return new File(appDataDir(), "daemon.properties");
+    }
+
     private static File appDataDir() {
         File root;
         String os = System.getProperty("os.name").toLowerCase();
@@ -392,36 +1787,45 @@ public class Stream2GDrive {
     }
 
 
-    private static class StreamContent
-        extends AbstractInputStreamContent {
-        private InputStream is;
+    private static class ProgressListener
+        implements MediaHttpDownloaderProgressListener {
 
-        public StreamContent(String type, InputStream is) {
-            super(type);
-            this.is = is;
-        }
+        private final boolean    progress;
+        private final ChunkSizer sizer;
 
-        @Override public InputStream getInputStream() {
-            return is;
+        private long startTime = System.currentTimeMillis();
+        private long startByte = 0;
+        private long chunkTime = startTime;
+        private long chunkByte;
+
+        public ProgressListener(boolean progress, ChunkSizer sizer, long offset) {
+            this.progress  = progress;
+            this.sizer     = sizer;
+            this.startByte = offset;
+            this.chunkByte = offset;
         }
 
-        @Override public boolean retrySupported() {
-            return false;
-        }
+        @Override public void progressChanged(MediaHttpDownloader dl)
+            throws IOException {
+            if (stats != null && dl.getDownloadState() != MediaHttpDownloader.DownloadState.NOT_STARTED) {
+                // Each chunk's body has been read by now
+                stats.bodyReceived();
+            }
 
-        @Override public long getLength() {
-            return -1;
-        }
-    }
+            if (dl.getDownloadState() == MediaHttpDownloader.DownloadState.MEDIA_IN_PROGRESS) {
+                long now = System.currentTimeMillis();
 
-    private static class ProgressListener
-        implements MediaHttpDownloaderProgressListener, MediaHttpUploaderProgressListener {
+                sizer.completed(dl.getNumBytesDownloaded() - chunkByte, now - chunkTime);
+                dl.setChunkSize(sizer.size());
 
-        private long startTime = System.currentTimeMillis();
-        private long startByte = 0;
+                chunkByte = dl.getNumBytesDownloaded();
+                chunkTime = now;
+            }
+
+            if (!progress) {
+                return;
+            }
 
-        @Override public void progressChanged(MediaHttpDownloader dl)
-            throws IOException {
             switch (dl.getDownloadState()) {
                 case MEDIA_IN_PROGRESS:
                     System.err.println(String.format("Downloaded %d MiB (%d %%). Current speed is %.1f MiB/s.",
@@ -436,39 +1840,6 @@ public class Stream2GDrive {
             }
         }
 
-        @Override public void progressChanged(MediaHttpUploader ul)
-            throws IOException {
-            switch (ul.getUploadState()) {
-                case INITIATION_STARTED:
-                    System.err.println("Preparing to upload ...");
-                    break;
-
-                case INITIATION_COMPLETE:
-                    System.err.println("Starting upload ...");
-                    break;
-
-                case MEDIA_IN_PROGRESS:
-                    try {
-                        System.err.println(String.format("Uploaded %d of %d MiB (%d %%). Current speed is %.1f MiB/s.",
-                                                         ul.getNumBytesUploaded() / 1024 / 1024,
-                                                         ul.getMediaContent().getLength() / 1024 / 1024,
-                                                         (int) (ul.getProgress() * 100),
-                                                         calcSpeed(ul.getNumBytesUploaded())));
-                    }
-                    catch (IllegalArgumentException ignored) {
-                        System.err.println(String.format("Uploaded %d MiB. Current speed is %.1f MiB/s.",
-                                                         ul.getNumBytesUploaded() / 1024 / 1024,
-                                                         calcSpeed(ul.getNumBytesUploaded())));
-                    }
-
-                    break;
-
-                case MEDIA_COMPLETE:
-                    System.err.println(String.format("Done! %d bytes uploaded.", ul.getNumBytesUploaded()));
-                    break;
-            }
-        }
-
         private double calcSpeed(long currentPosition) {
             long   now = System.currentTimeMillis();
             double mib = (currentPosition - startByte) / (1.0 * 1024 * 1024);
@@ -485,15 +1856,22 @@ public class Stream2GDrive {
         implements HttpRequestInitializer {
 
         Iterable<HttpRequestInitializer> initializerList;
+        TransferStats                    stats;
 
-        public HttpRequestInitializerStacker( Iterable<HttpRequestInitializer> _initializerList ) {
+        public HttpRequestInitializerStacker( Iterable<HttpRequestInitializer> _initializerList, TransferStats _stats ) {
             initializerList = _initializerList;
+            stats           = _stats;
         }
 
         public void initialize(HttpRequest request) throws IOException {
             for ( HttpRequestInitializer hri : initializerList ) {
                 hri.initialize( request );
             }
+
+            if ( stats != null ) {
+                // Last, so the handlers installed above are counted too
+                stats.instrument( request );
+            }
         }
     }
 
@@ -511,4 +1889,19 @@ public class Stream2GDrive {
             request.setUnsuccessfulResponseHandler( new HttpBackOffUnsuccessfulResponseHandler( backoffBuilder.build() ) );
         }
     }
+
+    /** The parts of the setup that commands need, so a daemon can share them between commands. */
+    static class Session {
+        final Drive                      client;
+        final HttpTransport              transport;
+        final ExponentialBackOff.Builder backoffBuilder;
+        final DriveIndex                 index;
+
+        Session(Drive client, HttpTransport transport, ExponentialBackOff.Builder backoffBuilder, DriveIndex index) {
+            this.client         = client;
+            this.transport      = transport;
+            this.backoffBuilder = backoffBuilder;
+            this.index          = index;
+        }
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.util.*;
+import com.google.api.services.drive.Drive;
+
+/**
+ * The small object that stands in for a striped upload. It lists the segment objects, in order,
+ * with their sizes and MD5 checksums, along with the size and checksum of the whole stream.
+ *
+ * The format is that of {@link Manifest}:
+ *
+ * <pre>
+ * stream2gdrive-striped  1
+ * size                   &lt;bytes&gt;
+ * md5                    &lt;hex&gt;
+ * segment                &lt;id&gt;  &lt;bytes&gt;  &lt;hex&gt;
+ * </pre>
+ */
+class StripeManifest
+    extends Manifest<StripeManifest.Segment> {
+    public static final String MIME_TYPE = "application/x-stream2gdrive-striped";
+
+    public static class Segment
+        extends Manifest.Part {
+        public final String md5;
+
+        public Segment(String id, long size, String md5) {
+            super(id, size);
+            this.md5 = md5;
+        }
+    }
+
+    public static boolean isManifest(com.google.api.services.drive.model.File meta) {
+        return isManifest(meta, MIME_TYPE);
+    }
+
+    /** Downloads and parses the manifest stored in {@code meta}. */
+    public static StripeManifest load(Drive client, com.google.api.services.drive.model.File meta)
+        throws IOException {
+        return load(client, meta, new StripeManifest(0, null, Collections.<Segment>emptyList()));
+    }
+
+    public StripeManifest(long size, String md5, List<Segment> segments) {
+        super(MIME_TYPE, "segment", "striped upload", size, md5, segments);
+    }
+
+    public List<Segment> getSegments() {
+        return getParts();
+    }
+
+    @Override protected Segment newPart(String id, long size, String hash) {
+        return new Segment(id, size, hash);
+    }
+
+    @Override protected String hashOf(Segment segment) {
+        return segment.md5;
+    }
+}
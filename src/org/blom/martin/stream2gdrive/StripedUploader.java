@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.services.drive.Drive;
+
+/**
+ * Uploads a single stream as several Drive objects at once.
+ *
+ * A resumable upload session is one serial byte stream, so a single {@code put -} can never be
+ * faster than one connection. Here the stream is cut into fixed-size segments, which are
+ * uploaded as separate objects over up to {@code jobs} concurrent sessions, and a small
+ * {@link StripeManifest} is stored under the requested name. At most {@code jobs + 1} segments
+ * (one being read, the others in flight) are held in memory or in the spill directory.
+ */
+class StripedUploader {
+    /** Creates the uploader for one segment. Every segment gets its own. */
+    public interface UploaderFactory {
+        ResumableUploader create();
+    }
+
+    private final Drive           client;
+    private final int             segmentSize;
+    private final int             jobs;
+    private final UploaderFactory factory;
+
+    private File    spillDirectory;
+    private boolean progress;
+
+    private volatile IOException failure;
+
+    public StripedUploader(Drive client, int segmentSize, int jobs, UploaderFactory factory) {
+        this.client      = client;
+        this.segmentSize = segmentSize;
+        this.jobs        = jobs;
+        this.factory     = factory;
+    }
+
+    public StripedUploader setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+        return this;
+    }
+
+    public StripedUploader setProgress(boolean progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /**
+     * Uploads the stream and returns the manifest object. If any segment fails, the segments
+     * that were already stored are moved to the trash.
+     */
+    public com.google.api.services.drive.model.File upload(com.google.api.services.drive.model.File meta, InputStream is)
+        throws IOException {
+        Stripes                      stripes  = new Stripes(jobs + 1);
+        AsyncDigest                  digest   = new AsyncDigest();
+        InputStream                  in       = digest.wrap(is);
+        ExecutorService              pool     = Executors.newFixedThreadPool(jobs);
+        List<Future<StripeManifest.Segment>> results = new ArrayList<Future<StripeManifest.Segment>>();
+        long                         total    = 0;
+        boolean                      done     = false;
+
+        if (progress) {
+            System.err.println(String.format("Starting striped upload in %d MiB segments over %d sessions ...",
+                                             segmentSize / 1024 / 1024, jobs));
+        }
+
+        try {
+            for (int i = 0; failure == null; ++i) {
+                Stripe stripe = take(stripes.free);
+                int    length = stripe.fill(in, segmentSize);
+
+                if (length == 0) {
+                    stripes.release(stripe);
+                    break;
+                }
+
+                results.add(pool.submit(upload(meta, i, stripe, length, stripes)));
+                total += length;
+
+                if (length < segmentSize) {
+                    break;
+                }
+            }
+
+            List<StripeManifest.Segment> segments = new ArrayList<StripeManifest.Segment>();
+
+            for (Future<StripeManifest.Segment> result : results) {
+                segments.add(get(result));
+            }
+
+            StripeManifest manifest = new StripeManifest(total, digest.finish(), segments);
+
+            com.google.api.services.drive.model.File info = new com.google.api.services.drive.model.File()
+                .setTitle(meta.getTitle())
+                .setMimeType(StripeManifest.MIME_TYPE)
+                .setParents(meta.getParents())
+                .setDescription(String.format("Striped upload of %d bytes in %d segments (%s)",
+                                              total, segments.size(), meta.getMimeType()));
+
+            Drive.Files.Insert insert = client.files().insert(info, new ByteArrayContent(StripeManifest.MIME_TYPE,
+                                                                                         manifest.toBytes()));
+            insert.getMediaHttpUploader().setDirectUploadEnabled(true);
+
+            com.google.api.services.drive.model.File result = insert.execute();
+
+            if (progress) {
+                System.err.println(String.format("Done! %d bytes uploaded in %d segments.", total, segments.size()));
+            }
+
+            done = true;
+            return result;
+        }
+        finally {
+            pool.shutdownNow();
+            digest.close();
+
+            // Segment uploads still in flight ignore the interrupt; they clean up after
+            // themselves when they finish
+            stripes.close(!done);
+        }
+    }
+
+    private Callable<StripeManifest.Segment> upload(final com.google.api.services.drive.model.File meta, final int index,
+                                                    final Stripe stripe, final int length, final Stripes stripes) {
+        return new Callable<StripeManifest.Segment>() {
+            @Override public StripeManifest.Segment call()
+                throws IOException {
+                try {
+                    String name = String.format("%s.part%05d", meta.getTitle(), index);
+
+                    com.google.api.services.drive.model.File segment = new com.google.api.services.drive.model.File()
+                        .setTitle(name)
+                        .setMimeType("application/octet-stream")
+                        .setParents(meta.getParents());
+
+                    InputStream is = stripe.open(length);
+
+                    try {
+                        segment = factory.create().upload(segment, is);
+                    }
+                    finally {
+                        is.close();
+                    }
+
+                    stripes.uploaded(segment.getId());
+
+                    if (!stripe.md5.equalsIgnoreCase(segment.getMd5Checksum())) {
+                        throw new ChecksumMismatchException(String.format("MD5 of segment '%s' is %s, but Google Drive reports %s",
+                                                                          name, stripe.md5, segment.getMd5Checksum()));
+                    }
+
+                    if (progress) {
+                        System.err.println(String.format("Segment %d (%d MiB) uploaded.", index, length / 1024 / 1024));
+                    }
+
+                    return new StripeManifest.Segment(segment.getId(), length, stripe.md5);
+                }
+                catch (IOException ex) {
+                    // Stop reading more segments; the error itself is reported from upload()
+                    failure = ex;
+                    throw ex;
+                }
+                finally {
+                    stripes.release(stripe);
+                }
+            }
+        };
+    }
+
+    private void discard(String id) {
+        try {
+            client.files().trash(id).execute();
+        }
+        catch (IOException ex) {
+            System.err.println(String.format("Failed to trash segment %s: %s", id, ex.getMessage()));
+        }
+    }
+
+    /**
+     * The stripe buffers and the segments stored so far. Once closed, tasks that finish late close
+     * the stripe they hand back and, if the upload failed, trash the segment they stored.
+     */
+    private class Stripes {
+        final BlockingQueue<Stripe> free;
+
+        private List<String> uploaded = new ArrayList<String>();
+        private boolean      closed;
+        private boolean      failed;
+
+        Stripes(int count)
+            throws IOException {
+            free = new ArrayBlockingQueue<Stripe>(count);
+
+            try {
+                for (int i = 0; i < count; ++i) {
+                    free.add(spillDirectory != null ? new SpillStripe(spillDirectory) : new MemoryStripe());
+                }
+            }
+            catch (IOException ex) {
+                close(false);
+                throw ex;
+            }
+        }
+
+        synchronized void release(Stripe stripe) {
+            if (closed) {
+                stripe.close();
+            }
+            else {
+                free.add(stripe);
+            }
+        }
+
+        void uploaded(String id) {
+            synchronized (this) {
+                if (!failed) {
+                    uploaded.add(id);
+                    return;
+                }
+            }
+
+            discard(id);
+        }
+
+        void close(boolean failure) {
+            List<String> orphans;
+
+            synchronized (this) {
+                closed = true;
+                failed = failure;
+                orphans = failure ? uploaded : Collections.<String>emptyList();
+
+                for (Stripe stripe : free) {
+                    stripe.close();
+                }
+
+                free.clear();
+            }
+
+            for (String id : orphans) {
+                discard(id);
+            }
+        }
+    }
+
+    private static Stripe take(BlockingQueue<Stripe> queue)
+        throws IOException {
+        try {
+            return queue.take();
+        }
+        catch (InterruptedException ex) {
+            throw new InterruptedIOException("Upload interrupted");
+        }
+    }
+
+    private static <T> T get(Future<T> future)
+        throws IOException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException ex) {
+            throw new InterruptedIOException("Upload interrupted");
+        }
+        catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            else if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            else {
+                throw new IOException(ex.getCause());
+            }
+        }
+    }
+
+    /** Holds one segment while it is being uploaded. */
+    private static abstract class Stripe {
+        protected byte[] buffer = new byte[64 * 1024];
+
+        String md5;
+
+        /** Replaces the segment with up to {@code size} bytes and computes their MD5. */
+        int fill(InputStream is, int size)
+            throws IOException {
+            MessageDigest md;
+
+            try {
+                md = MessageDigest.getInstance("MD5");
+            }
+            catch (NoSuchAlgorithmException ex) {
+                throw new IOException(ex);
+            }
+
+            int length = 0;
+            int n;
+
+            begin(size);
+
+            while (length < size && (n = is.read(buffer, 0, Math.min(buffer.length, size - length))) != -1) {
+                store(buffer, length, n);
+                md.update(buffer, 0, n);
+                length += n;
+            }
+
+            StringBuilder sb = new StringBuilder();
+
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+
+            md5 = sb.toString();
+            return length;
+        }
+
+        abstract void begin(int size)
+            throws IOException;
+
+        abstract void store(byte[] data, int offset, int length)
+            throws IOException;
+
+        abstract InputStream open(int length)
+            throws IOException;
+
+        abstract void close();
+    }
+
+    private static class MemoryStripe
+        extends Stripe {
+        private byte[] data = new byte[0];
+
+        @Override void begin(int size) {
+            if (data.length < size) {
+                data = null;
+                data = new byte[size];
+            }
+        }
+
+        @Override void store(byte[] b, int offset, int length) {
+            System.arraycopy(b, 0, data, offset, length);
+        }
+
+        @Override InputStream open(int length) {
+            return new ByteArrayInputStream(data, 0, length);
+        }
+
+        @Override void close() {
+            data = null;
+        }
+    }
+
+    private static class SpillStripe
+        extends Stripe {
+        private File             file;
+        private RandomAccessFile raf;
+
+        public SpillStripe(File directory)
+            throws IOException {
+            this.file = File.createTempFile("stream2gdrive-", ".segment", directory);
+            this.raf  = new RandomAccessFile(file, "rw");
+
+            file.deleteOnExit();
+        }
+
+        @Override void begin(int size)
+            throws IOException {
+            raf.seek(0);
+        }
+
+        @Override void store(byte[] b, int offset, int length)
+            throws IOException {
+            raf.write(b, 0, length);
+        }
+
+        @Override InputStream open(final int length)
+            throws IOException {
+            FileInputStream fis = new FileInputStream(file);
+
+            // The file is reused and may still hold the tail of a longer, earlier segment
+            return new FilterInputStream(new BufferedInputStream(fis, buffer.length)) {
+                private long left = length;
+
+                @Override public int read()
+                    throws IOException {
+                    int b = left > 0 ? super.read() : -1;
+
+                    if (b != -1) {
+                        --left;
+                    }
+
+                    return b;
+                }
+
+                @Override public int read(byte[] b, int off, int len)
+                    throws IOException {
+                    if (left <= 0) {
+                        return -1;
+                    }
+
+                    int n = super.read(b, off, (int) Math.min(len, left));
+
+                    if (n > 0) {
+                        left -= n;
+                    }
+
+                    return n;
+                }
+            };
+        }
+
+        @Override void close() {
+            try {
+                raf.close();
+            }
+            catch (IOException ignored) {}
+
+            file.delete();
+        }
+    }
+}
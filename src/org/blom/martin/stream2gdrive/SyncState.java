@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Remembers what {@code sync} has uploaded from a local directory to a Google Drive folder: the
+ * size, modification time, MD5 checksum and Drive ID of every file, by relative path.
+ *
+ * A file whose size and modification time match its entry is known to be unchanged, so it can
+ * be skipped without reading it or asking the server. There is one state file per pair of
+ * local directory and remote folder.
+ */
+class SyncState {
+    public static class Entry {
+        public final long   size;
+        public final long   modified;
+        public final String md5;
+        public final String id;
+
+        public Entry(long size, long modified, String md5, String id) {
+            this.size     = size;
+            this.modified = modified;
+            this.md5      = md5;
+            this.id       = id;
+        }
+
+        /** Returns true if {@code file} still has the size and modification time recorded. */
+        public boolean matches(File file) {
+            return file.length() == size && file.lastModified() == modified;
+        }
+    }
+
+    private final File               file;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private boolean dirty;
+
+    public SyncState(File directory, File local, String folder)
+        throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Failed to create directory '%s'", directory));
+        }
+
+        file = new File(directory, hash(local.getCanonicalPath() + '\0' + folder) + ".tsv");
+
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    public synchronized Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public synchronized void put(String path, Entry entry) {
+        entries.put(path, entry);
+        dirty = true;
+    }
+
+    public synchronized void remove(String path) {
+        if (entries.remove(path) != null) {
+            dirty = true;
+        }
+    }
+
+    /** Returns the paths of all recorded files. */
+    public synchronized Set<String> paths() {
+        return new HashSet<String>(entries.keySet());
+    }
+
+    public synchronized void save()
+        throws IOException {
+        if (!dirty) {
+            return;
+        }
+
+        File   tmp = new File(file.getPath() + ".tmp");
+        Writer w   = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+
+        try {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+
+                w.write(String.format("file\t%s\t%d\t%d\t%s\t%s\n",
+                                      URLEncoder.encode(e.getKey(), "UTF-8"), entry.size, entry.modified, entry.md5, entry.id));
+            }
+        }
+        finally {
+            w.close();
+        }
+
+        // Windows will not rename over an existing file
+        file.delete();
+
+        if (!tmp.renameTo(file)) {
+            throw new IOException(String.format("Failed to save sync state to '%s'", file));
+        }
+
+        dirty = false;
+    }
+
+    private void load()
+        throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+        try {
+            String line;
+
+            while ((line = r.readLine()) != null) {
+                String[] f = line.split("\t", -1);
+
+                if (f[0].equals("file") && f.length == 6) {
+                    entries.put(URLDecoder.decode(f[1], "UTF-8"),
+                                new Entry(Long.parseLong(f[2]), Long.parseLong(f[3]), f[4], f[5]));
+                }
+            }
+        }
+        catch (RuntimeException ex) {
+            // A damaged state file only means that files are compared with the server again
+            entries.clear();
+        }
+        finally {
+            r.close();
+        }
+    }
+
+    private static String hash(String key)
+        throws IOException {
+        try {
+            StringBuilder sb = new StringBuilder();
+
+            for (byte b : MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"))) {
+                sb.append(String.format("%02x", b));
+            }
+
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+}
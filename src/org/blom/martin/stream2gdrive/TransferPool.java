@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a batch of file transfers on a bounded number of threads, reports the outcome of each one
+ * as it completes and prints an aggregate summary at the end.
+ */
+class TransferPool {
+    /** A single transfer, which returns the number of bytes it moved. */
+    public interface Transfer {
+        long run()
+            throws IOException;
+    }
+
+    private final ExecutorService    pool;
+    private final List<Future<?>>    tasks = new ArrayList<Future<?>>();
+    private final long               startTime = System.currentTimeMillis();
+
+    private int  succeeded;
+    private int  failed;
+    private long bytes;
+
+    public TransferPool(int jobs) {
+        pool = Executors.newFixedThreadPool(jobs);
+    }
+
+    public void submit(final String name, final Transfer transfer) {
+        tasks.add(pool.submit(new Runnable() {
+            @Override public void run() {
+                long start = System.currentTimeMillis();
+
+                try {
+                    long size = transfer.run();
+
+                    completed(name, size, System.currentTimeMillis() - start);
+                }
+                catch (Exception ex) {
+                    failed(name, ex);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Waits for all submitted transfers, prints a summary and returns the number of transfers
+     * that failed.
+     */
+    public int finish()
+        throws IOException {
+        pool.shutdown();
+
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        }
+        catch (InterruptedException ex) {
+            pool.shutdownNow();
+            throw new InterruptedIOException("Transfers interrupted");
+        }
+        catch (ExecutionException ex) {
+            // Transfers catch their own exceptions
+            throw new IOException(ex.getCause());
+        }
+
+        double sec = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+
+        synchronized (this) {
+            System.err.println(String.format("%d of %d files done, %d MiB in %.1f s (%.1f MiB/s). %d failed.",
+                                             succeeded, succeeded + failed, bytes / 1024 / 1024, sec,
+                                             bytes / (1.0 * 1024 * 1024) / sec, failed));
+            return failed;
+        }
+    }
+
+    private synchronized void completed(String name, long size, long millis) {
+        double sec = Math.max(1, millis) / 1000.0;
+
+        ++succeeded;
+        bytes += size;
+
+        System.err.println(String.format("OK      %s (%d bytes in %.1f s, %.1f MiB/s)",
+                                         name, size, sec, size / (1.0 * 1024 * 1024) / sec));
+    }
+
+    /** Records a failure that happened before a transfer could be submitted. */
+    public synchronized void failed(String name, Exception ex) {
+        ++failed;
+
+        System.err.println(String.format("FAILED  %s: %s", name, ex.getMessage()));
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.util.*;
+import com.google.api.client.http.*;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonGenerator;
+
+/**
+ * Collects per-request timings, retry counts and byte counts, grouped by operation (the HTTP
+ * method and the kind of resource, like {@code "PUT upload"} or {@code "GET media"}).
+ *
+ * Every request is timed in phases: connecting (up to the first byte of the request body),
+ * sending the body, waiting for the response headers and receiving the response body. Connect
+ * time is only known for requests that have a body; for the others it is part of the wait. The
+ * body of a response is read by the caller, which reports when it is done with
+ * {@link #bodyReceived}.
+ *
+ * Snapshots are written as single-line JSON objects, optionally at a fixed interval and always
+ * once more when the program exits.
+ */
+class TransferStats {
+    private final Map<String, Operation> operations = new TreeMap<String, Operation>();
+    private final ThreadLocal<Answer>    answered   = new ThreadLocal<Answer>();
+    private final long                   startTime  = System.currentTimeMillis();
+    private final JsonFactory            jsonFactory;
+
+    private PrintStream out;
+
+    public TransferStats(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * Writes a snapshot to {@code out} every {@code intervalMillis} ms (unless zero) and a final
+     * one when the JVM exits, however that happens.
+     */
+    public void start(PrintStream out, long intervalMillis) {
+        this.out = out;
+
+        if (intervalMillis > 0) {
+            new Timer("TransferStats", true).scheduleAtFixedRate(new TimerTask() {
+                @Override public void run() {
+                    write(false);
+                }
+            }, intervalMillis, intervalMillis);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread("TransferStats") {
+            @Override public void run() {
+                write(true);
+            }
+        });
+    }
+
+    /**
+     * Times every attempt of {@code request} and counts the retries taken by its handlers. Must
+     * be called after all other initializers, so the handlers they installed can be wrapped.
+     */
+    public void instrument(HttpRequest request) {
+        RequestMeter meter = new RequestMeter(request.getInterceptor(), request.getResponseInterceptor());
+
+        request.setInterceptor(meter);
+        request.setResponseInterceptor(meter);
+        request.setIOExceptionHandler(new CountingIOExceptionHandler(meter, request.getIOExceptionHandler()));
+        request.setUnsuccessfulResponseHandler(new CountingResponseHandler(meter, request.getUnsuccessfulResponseHandler()));
+    }
+
+    /** Reports that the body of the last response received on this thread has been read. */
+    public void bodyReceived() {
+        Answer answer = answered.get();
+
+        if (answer != null) {
+            answered.remove();
+            answer.operation.body.add(System.currentTimeMillis() - answer.time);
+        }
+    }
+
+    /** Counts a retry that was decided outside the request's own handlers. */
+    public void retry(String method, GenericUrl url) {
+        operation(method, url).retry();
+    }
+
+    /** Counts a failed request that did not produce a response. */
+    public void error(String method, GenericUrl url) {
+        operation(method, url).error();
+    }
+
+    private synchronized Operation operation(String method, GenericUrl url) {
+        String    name      = method + " " + kindOf(url);
+        Operation operation = operations.get(name);
+
+        if (operation == null) {
+            operation = new Operation();
+            operations.put(name, operation);
+        }
+
+        return operation;
+    }
+
+    private static String kindOf(GenericUrl url) {
+        List<String> parts   = url.getPathParts();
+        int          version = parts != null ? parts.indexOf("v2") : -1;
+
+        if ("media".equals(url.getFirst("alt"))) {
+            return "media";
+        }
+        else if (parts != null && parts.size() > 1 && parts.get(1).equals("upload")) {
+            return "upload";
+        }
+        else if (version >= 0 && version + 1 < parts.size()) {
+            // files/<id>/trash and the like are grouped by their action, not by file
+            return parts.get(version + 1) + (version + 3 < parts.size() ? "/" + parts.get(version + 3) : "");
+        }
+        else {
+            return url.getHost();
+        }
+    }
+
+    private synchronized void write(boolean last) {
+        try {
+            StringWriter  sw = new StringWriter();
+            JsonGenerator jg = jsonFactory.createJsonGenerator(sw);
+            long          now = System.currentTimeMillis();
+            Operation     total = new Operation();
+
+            jg.writeStartObject();
+            jg.writeFieldName("time");
+            jg.writeNumber(now);
+            jg.writeFieldName("elapsed_ms");
+            jg.writeNumber(now - startTime);
+            jg.writeFieldName("final");
+            jg.writeBoolean(last);
+            jg.writeFieldName("operations");
+            jg.writeStartObject();
+
+            for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+                jg.writeFieldName(entry.getKey());
+                entry.getValue().write(jg, total);
+            }
+
+            jg.writeEndObject();
+            jg.writeFieldName("total");
+            total.write(jg, null);
+            jg.writeFieldName("sent_mib_per_s");
+            jg.writeNumber(total.sent / (1024.0 * 1024) / Math.max(1, now - startTime) * 1000);
+            jg.writeFieldName("received_mib_per_s");
+            jg.writeNumber(total.received / (1024.0 * 1024) / Math.max(1, now - startTime) * 1000);
+            jg.writeEndObject();
+            jg.flush();
+
+            out.println(sw);
+            out.flush();
+        }
+        catch (IOException ex) {
+            System.err.println("Failed to write transfer statistics: " + ex.getMessage());
+        }
+    }
+
+    private static class Answer {
+        final Operation operation;
+        final long      time;
+
+        Answer(Operation operation, long time) {
+            this.operation = operation;
+            this.time      = time;
+        }
+    }
+
+    /** Counters and latency histograms of one kind of request. */
+    private static class Operation {
+        final Histogram connect = new Histogram();
+        final Histogram send    = new Histogram();
+        final Histogram wait    = new Histogram();
+        final Histogram body    = new Histogram();
+
+        long requests;
+        long errors;
+        long retries;
+        long sent;
+        long received;
+
+        synchronized void request() {
+            ++requests;
+        }
+
+        synchronized void error() {
+            ++errors;
+        }
+
+        synchronized void retry() {
+            ++retries;
+        }
+
+        synchronized void add(long sent, long received) {
+            this.sent     += sent;
+            this.received += received;
+        }
+
+        synchronized void write(JsonGenerator jg, Operation total)
+            throws IOException {
+            jg.writeStartObject();
+            writeField(jg, "requests", requests);
+            writeField(jg, "errors",   errors);
+            writeField(jg, "retries",  retries);
+            writeField(jg, "bytes_sent", sent);
+            writeField(jg, "bytes_received", received);
+
+            if (total != null) {
+                total.requests += requests;
+                total.errors   += errors;
+                total.retries  += retries;
+                total.sent     += sent;
+                total.received += received;
+
+                connect.write(jg, "connect_ms");
+                send.write(jg, "send_ms");
+                wait.write(jg, "ttfb_ms");
+                body.write(jg, "body_ms");
+            }
+
+            jg.writeEndObject();
+        }
+
+        private static void writeField(JsonGenerator jg, String name, long value)
+            throws IOException {
+            jg.writeFieldName(name);
+            jg.writeNumber(value);
+        }
+    }
+
+    /**
+     * A latency histogram with power-of-two buckets: bucket {@code i} counts values below
+     * {@code 2^i} ms (and at least {@code 2^(i-1)} ms). Percentiles are reported as the upper
+     * bound of the bucket they fall in.
+     */
+    private static class Histogram {
+        private final long[] buckets = new long[32];
+
+        private long count;
+        private long sum;
+        private long min = Long.MAX_VALUE;
+        private long max;
+
+        synchronized void add(long millis) {
+            millis = Math.max(0, millis);
+
+            ++buckets[Math.min(buckets.length - 1, 64 - Long.numberOfLeadingZeros(millis))];
+            ++count;
+            sum += millis;
+            min  = Math.min(min, millis);
+            max  = Math.max(max, millis);
+        }
+
+        synchronized void write(JsonGenerator jg, String name)
+            throws IOException {
+            if (count == 0) {
+                return;
+            }
+
+            jg.writeFieldName(name);
+            jg.writeStartObject();
+            jg.writeFieldName("count");
+            jg.writeNumber(count);
+            jg.writeFieldName("mean");
+            jg.writeNumber(sum / (double) count);
+            jg.writeFieldName("min");
+            jg.writeNumber(min);
+            jg.writeFieldName("max");
+            jg.writeNumber(max);
+            jg.writeFieldName("p50");
+            jg.writeNumber(percentile(0.50));
+            jg.writeFieldName("p90");
+            jg.writeNumber(percentile(0.90));
+            jg.writeFieldName("p99");
+            jg.writeNumber(percentile(0.99));
+            jg.writeFieldName("buckets");
+            jg.writeStartObject();
+
+            for (int i = 0; i < buckets.length; ++i) {
+                if (buckets[i] != 0) {
+                    jg.writeFieldName(Long.toString(1L << i));
+                    jg.writeNumber(buckets[i]);
+                }
+            }
+
+            jg.writeEndObject();
+            jg.writeEndObject();
+        }
+
+        private long percentile(double fraction) {
+            long seen = 0;
+
+            for (int i = 0; i < buckets.length; ++i) {
+                seen += buckets[i];
+
+                if (seen >= fraction * count) {
+                    return Math.min(max, 1L << i);
+                }
+            }
+
+            return max;
+        }
+    }
+
+    /** Follows one request through its attempts. */
+    private class RequestMeter
+        implements HttpExecuteInterceptor, HttpResponseInterceptor {
+        private final HttpExecuteInterceptor  interceptor;
+        private final HttpResponseInterceptor responseInterceptor;
+
+        private Operation operation;
+        private long      started;
+        private long      sendStarted;
+        private long      sendEnded;
+        private boolean   answered;
+
+        RequestMeter(HttpExecuteInterceptor interceptor, HttpResponseInterceptor responseInterceptor) {
+            this.interceptor         = interceptor;
+            this.responseInterceptor = responseInterceptor;
+        }
+
+        @Override public void intercept(HttpRequest request)
+            throws IOException {
+            if (interceptor != null) {
+                interceptor.intercept(request);
+            }
+
+            operation   = operation(request.getRequestMethod(), request.getUrl());
+            started     = System.currentTimeMillis();
+            sendStarted = 0;
+            sendEnded   = 0;
+            answered    = false;
+
+            operation.request();
+
+            if (request.getContent() != null && !(request.getContent() instanceof MeteredContent)) {
+                request.setContent(new MeteredContent(request.getContent(), this));
+            }
+        }
+
+        @Override public void interceptResponse(HttpResponse response)
+            throws IOException {
+            headersReceived(response);
+
+            if (responseInterceptor != null) {
+                responseInterceptor.interceptResponse(response);
+            }
+        }
+
+        void headersReceived(HttpResponse response) {
+            if (answered || operation == null) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+
+            answered = true;
+
+            if (sendStarted != 0) {
+                operation.connect.add(sendStarted - started);
+                operation.send.add(sendEnded - sendStarted);
+                operation.wait.add(now - sendEnded);
+            }
+            else {
+                operation.wait.add(now - started);
+            }
+
+            if (!response.isSuccessStatusCode() && response.getStatusCode() / 100 != 3) {
+                operation.error();
+            }
+
+            HttpContent content  = response.getRequest().getContent();
+            Long        received = response.getHeaders().getContentLength();
+
+            try {
+                operation.add(content != null ? Math.max(0, content.getLength()) : 0, received != null ? received : 0);
+            }
+            catch (IOException ignored) {}
+
+            TransferStats.this.answered.set(new Answer(operation, now));
+        }
+    }
+
+    private static class MeteredContent
+        implements HttpContent {
+        private final HttpContent  content;
+        private final RequestMeter meter;
+
+        MeteredContent(HttpContent content, RequestMeter meter) {
+            this.content = content;
+            this.meter   = meter;
+        }
+
+        @Override public long getLength()
+            throws IOException {
+            return content.getLength();
+        }
+
+        @Override public String getType() {
+            return content.getType();
+        }
+
+        @Override public boolean retrySupported() {
+            return content.retrySupported();
+        }
+
+        @Override public void writeTo(OutputStream out)
+            throws IOException {
+            // The connection is open once the transport asks for the body
+            meter.sendStarted = System.currentTimeMillis();
+            content.writeTo(out);
+            out.flush();
+            meter.sendEnded = System.currentTimeMillis();
+        }
+    }
+
+    private static class CountingIOExceptionHandler
+        implements HttpIOExceptionHandler {
+        private final RequestMeter           meter;
+        private final HttpIOExceptionHandler handler;
+
+        CountingIOExceptionHandler(RequestMeter meter, HttpIOExceptionHandler handler) {
+            this.meter   = meter;
+            this.handler = handler;
+        }
+
+        @Override public boolean handleIOException(HttpRequest request, boolean supportsRetry)
+            throws IOException {
+            boolean retry = handler != null && handler.handleIOException(request, supportsRetry);
+
+            if (meter.operation != null) {
+                meter.operation.error();
+
+                if (retry) {
+                    meter.operation.retry();
+                }
+            }
+
+            return retry;
+        }
+    }
+
+    private static class CountingResponseHandler
+        implements HttpUnsuccessfulResponseHandler {
+        private final RequestMeter                    meter;
+        private final HttpUnsuccessfulResponseHandler handler;
+
+        CountingResponseHandler(RequestMeter meter, HttpUnsuccessfulResponseHandler handler) {
+            this.meter   = meter;
+            this.handler = handler;
+        }
+
+        @Override public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry)
+            throws IOException {
+            meter.headersReceived(response);
+
+            boolean retry = handler != null && handler.handleResponse(request, response, supportsRetry);
+
+            if (retry && meter.operation != null) {
+                meter.operation.retry();
+            }
+
+            return retry;
+        }
+    }
+}
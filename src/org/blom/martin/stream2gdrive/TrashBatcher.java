@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2014 Martin Blom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.blom.martin.stream2gdrive;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.drive.Drive;
+
+/**
+ * Moves files to the trash through Drive batch requests, which carry up to {@link
+ * #MAX_BATCH_SIZE} calls in a single HTTP round trip. Several batches are sent at the same time,
+ * and calls that fail inside a batch are retried one at a time afterwards.
+ */
+class TrashBatcher {
+    /** The most calls Google Drive accepts in one batch request. */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    private final Drive      client;
+    private final int        jobs;
+    private final GenericUrl batchUrl;
+
+    public TrashBatcher(Drive client, int jobs) {
+        this.client = client;
+        this.jobs   = jobs;
+
+        // The global batch endpoint is gone; each API has its own, like batch/drive/v2
+        batchUrl = new GenericUrl(client.getRootUrl() + "batch/" + client.getServicePath().replaceAll("/$", ""));
+    }
+
+    /**
+     * Trashes the files with the given IDs and returns the ones that could not be trashed, mapped
+     * to the reason.
+     */
+    public Map<String, String> trash(Collection<String> ids)
+        throws IOException {
+        ExecutorService           pool   = Executors.newFixedThreadPool(jobs);
+        List<Future<?>>           tasks  = new ArrayList<Future<?>>();
+        List<String>              all    = new ArrayList<String>(ids);
+        final Map<String, String> failed = new ConcurrentHashMap<String, String>();
+
+        for (int i = 0; i < all.size(); i += MAX_BATCH_SIZE) {
+            final List<String> batch = all.subList(i, Math.min(all.size(), i + MAX_BATCH_SIZE));
+
+            tasks.add(pool.submit(new Callable<Void>() {
+                @Override public Void call()
+                    throws IOException {
+                    send(batch, failed);
+                    return null;
+                }
+            }));
+        }
+
+        pool.shutdown();
+
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        }
+        catch (InterruptedException ex) {
+            pool.shutdownNow();
+            throw new InterruptedIOException("Trash interrupted");
+        }
+        catch (ExecutionException ex) {
+            pool.shutdownNow();
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        }
+
+        return failed;
+    }
+
+    private void send(List<String> ids, Map<String, String> failed)
+        throws IOException {
+        final List<String> retry = new ArrayList<String>();
+        BatchRequest       batch = client.batch().setBatchUrl(batchUrl);
+
+        for (final String id : ids) {
+            client.files().trash(id).queue(batch, new JsonBatchCallback<com.google.api.services.drive.model.File>() {
+                @Override public void onSuccess(com.google.api.services.drive.model.File file, HttpHeaders headers) {
+                }
+
+                @Override public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                    retry.add(id);
+                }
+            });
+        }
+
+        try {
+            batch.execute();
+        }
+        catch (IOException ex) {
+            // Trashing a file twice does no harm, so the whole batch is simply retried
+            retry.clear();
+            retry.addAll(ids);
+        }
+
+        for (String id : retry) {
+            try {
+                client.files().trash(id).execute();
+            }
+            catch (IOException ex) {
+                failed.put(id, ex.getMessage());
+            }
+        }
+    }
+}